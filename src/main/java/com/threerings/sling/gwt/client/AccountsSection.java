@@ -23,6 +23,7 @@ import com.threerings.sling.gwt.util.SectionId;
 import com.threerings.sling.web.data.Account;
 import com.threerings.sling.web.data.AccountName;
 import com.threerings.sling.web.data.MachineIdentity;
+import com.threerings.sling.web.data.RelatedAccountGraph;
 
 import static com.threerings.sling.gwt.client.SlingNav.Accounts;
 import static com.threerings.sling.gwt.client.SlingUtils.translateServerError;
@@ -76,6 +77,8 @@ public class AccountsSection<Ctx extends SlingContext>
                     }
                 });
             return container;
+        case LINKED:
+            return findLinked(ctx, shifter.next(), Integer.parseInt(shifter.next()));
         case CREATE:
             return new AccountCreationPanel(ctx);
         case SEARCH:
@@ -114,6 +117,39 @@ public class AccountsSection<Ctx extends SlingContext>
         return container;
     }
 
+    /**
+     * Creates a view of the machine identifiers connected to the given account through any
+     * number of accounts, within {@link #LINKED_HOPS}.
+     */
+    protected Widget findLinked (final Ctx ctx, final String accountName, final int accountId)
+    {
+        final SimplePanel container = Widgets.newSimplePanel(null,
+            Widgets.newInlineLabel(_msgs.findingLinkedAccounts()));
+        ctx.svc.getRelatedAccountGraph(accountId, LINKED_HOPS,
+            new AsyncCallback<RelatedAccountGraph>() {
+                @Override public void onFailure (Throwable caught) {
+                    container.setWidget(Widgets.newInlineLabel(
+                        _msgs.anErrorOccurred(translateServerError(caught)), "uError"));
+                }
+
+                @Override public void onSuccess (RelatedAccountGraph result) {
+                    if (result.idents.isEmpty()) {
+                        container.setWidget(Widgets.newInlineLabel(
+                            _msgs.noRelatedAccountsFoundForAccountId(String.valueOf(accountId))));
+                        return;
+                    }
+                    RelatedAccountsPanel panel = new RelatedAccountsPanel(ctx,
+                        _msgs.accountsLinkedToAccount(accountName, String.valueOf(accountId),
+                            String.valueOf(LINKED_HOPS)), result.idents);
+                    if (result.truncated) {
+                        panel.setStatus(_msgs.linkedAccountsTruncated());
+                    }
+                    container.setWidget(panel);
+                }
+            });
+        return container;
+    }
+
     protected AsyncCallback<Account> createAccountCallback (final Ctx ctx,
         final SimplePanel target, final String error)
     {
@@ -175,4 +211,7 @@ public class AccountsSection<Ctx extends SlingContext>
     }
 
     protected static final ClientMessages _msgs = GWT.create(ClientMessages.class);
+
+    /** How many machine identifiers away we look for linked accounts. */
+    protected static final int LINKED_HOPS = 3;
 }
@@ -30,18 +30,19 @@ import com.threerings.gwt.ui.SmartTable;
 import com.threerings.gwt.ui.Widgets;
 import com.threerings.gwt.util.Console;
 import com.threerings.gwt.util.InputException;
-import com.threerings.gwt.util.PagedRequest;
 import com.threerings.gwt.util.PagedResult;
 import com.threerings.gwt.util.PagedServiceDataModel;
 import com.threerings.sling.gwt.client.SlingNav.Events;
 import com.threerings.sling.gwt.ui.ParaPanel;
 import com.threerings.sling.gwt.ui.TimeRangeWidget;
 import com.threerings.sling.gwt.ui.TimeSpanWidget;
+import com.threerings.sling.gwt.util.SeekPagedDataModel;
 import com.threerings.sling.gwt.util.TimeRanges;
 import com.threerings.sling.web.client.SlingService.TimeUnit;
 import com.threerings.sling.web.data.Event;
 import com.threerings.sling.web.data.EventFilter;
 import com.threerings.sling.web.data.EventSearch;
+import com.threerings.sling.web.data.SeekPagedRequest;
 import com.threerings.sling.web.data.TimeRange;
 
 import static com.threerings.sling.gwt.client.SlingUtils.translateServerError;
@@ -400,10 +401,10 @@ public class AdvancedEventSearchPanel extends FlowPanel
 
     protected PagedServiceDataModel<Event, PagedResult<Event>> toModel (final EventSearch search)
     {
-        return new PagedServiceDataModel<Event, PagedResult<Event>>() {
-            @Override // from ServiceBackedDataModel
-                 protected void callFetchService (
-                     PagedRequest request, AsyncCallback<PagedResult<Event>> callback)
+        return new SeekPagedDataModel<Event>() {
+            @Override // from SeekPagedDataModel
+            protected void callSeekService (
+                SeekPagedRequest request, AsyncCallback<PagedResult<Event>> callback)
             {
                 _ctx.svc.searchEvents(search, request, callback);
             }
@@ -23,6 +23,21 @@ public interface ClientMessages extends com.google.gwt.i18n.client.Messages
     @Key("relatedAccounts")
     String relatedAccounts ();
 
+    @Key("linkedAccounts")
+    String linkedAccounts ();
+
+    @Key("findingLinkedAccounts")
+    String findingLinkedAccounts ();
+
+    @Key("accountsLinkedToAccount")
+    String accountsLinkedToAccount (String arg0, String arg1, String arg2);
+
+    @Key("linkedAccountsTruncated")
+    String linkedAccountsTruncated ();
+
+    @Key("identHops")
+    String identHops (String arg0, String arg1);
+
     @Key("averageEventVolume")
     String averageEventVolume ();
 
@@ -359,6 +374,9 @@ public interface ClientMessages extends com.google.gwt.i18n.client.Messages
     @Key("noEventsFound")
     String noEventsFound ();
 
+    @Key("estimatedEventCount")
+    String estimatedEventCount (String arg0);
+
     @Key("editFlagsMessage")
     String editFlagsMessage (String arg0);
 
@@ -11,9 +11,7 @@ import com.google.gwt.user.client.ui.Widget;
 
 import com.threerings.gwt.ui.Popups;
 import com.threerings.gwt.ui.Widgets;
-import com.threerings.gwt.util.PagedRequest;
 import com.threerings.gwt.util.PagedResult;
-import com.threerings.gwt.util.PagedServiceDataModel;
 import com.threerings.sling.gwt.client.SlingNav.Events;
 import com.threerings.sling.gwt.ui.LoadingPanel;
 import com.threerings.sling.gwt.util.Arguments;
@@ -22,10 +20,12 @@ import com.threerings.sling.gwt.util.AuthorizationException;
 import com.threerings.sling.gwt.util.Nav;
 import com.threerings.sling.gwt.util.Section;
 import com.threerings.sling.gwt.util.SectionId;
+import com.threerings.sling.gwt.util.SeekPagedDataModel;
 import com.threerings.sling.web.client.SlingService;
 import com.threerings.sling.web.data.Event;
 import com.threerings.sling.web.data.EventFilter;
 import com.threerings.sling.web.data.EventSearch;
+import com.threerings.sling.web.data.SeekPagedRequest;
 
 import static com.threerings.sling.gwt.client.SlingUtils.translateServerError;
 
@@ -55,10 +55,10 @@ public class EventsSection<Ctx extends SlingContext>
                 SlingService.Events.class, shifter.next());
             final String query = by == SlingService.Events.ACCOUNT ? shifter.next() : null;
             EventsTable events = new EventsTable(ctx);
-            events.setModel(new PagedServiceDataModel<Event, PagedResult<Event>>() {
-                @Override // from ServiceBackedDataModel
-                protected void callFetchService (
-                    PagedRequest request, AsyncCallback<PagedResult<Event>> callback)
+            events.setModel(new SeekPagedDataModel<Event>() {
+                @Override // from SeekPagedDataModel
+                protected void callSeekService (
+                    SeekPagedRequest request, AsyncCallback<PagedResult<Event>> callback)
                 {
                     ctx.svc.loadEvents(by, query, request, callback);
                 }
@@ -75,6 +75,11 @@ public class EventsSection<Ctx extends SlingContext>
             if (by == SlingService.Events.OPEN && !shifter.hasNext()) {
                 args.values.add(String.valueOf(System.currentTimeMillis()));
             }
+
+            // keep the open queue up to date without the agent having to refresh it
+            if (by == SlingService.Events.OPEN) {
+                events.watchOpenEvents();
+            }
             return events;
         case VIEW:
         case POST_NOTE:
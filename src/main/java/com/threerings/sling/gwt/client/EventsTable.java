@@ -3,12 +3,17 @@
 
 package com.threerings.sling.gwt.client;
 
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.CheckBox;
@@ -23,7 +28,9 @@ import com.threerings.gwt.ui.PagedTable;
 import com.threerings.gwt.ui.Popups;
 import com.threerings.gwt.ui.SmartTable;
 import com.threerings.sling.gwt.client.SlingNav.Events;
+import com.threerings.sling.gwt.util.SeekPagedDataModel;
 import com.threerings.sling.gwt.util.ServerTime;
+import com.threerings.sling.web.client.SlingService;
 import com.threerings.sling.web.data.Event;
 
 import static com.threerings.sling.gwt.client.SlingUtils.translateServerError;
@@ -43,6 +50,16 @@ public class EventsTable extends PagedTable<Event>
         _ctx = ctx;
     }
 
+    /**
+     * Keeps the displayed events up to date with changes made on the server until the table is
+     * removed from the page. Changed events are redrawn in place, events that leave the open
+     * queue are marked as handled and new open events are added to the top of the first page.
+     */
+    public void watchOpenEvents ()
+    {
+        pollEvents(0);
+    }
+
     @Override // from PagedWidget
     protected String getEmptyMessage ()
     {
@@ -108,6 +125,9 @@ public class EventsTable extends PagedTable<Event>
     @Override // from PagedTable
     protected void didAddRow (final SmartTable table, final int row, Event event)
     {
+        _table = table;
+        _rows.put(event.eventId, row);
+
         // this is kinda messy, maybe PagedTable could better support this pattern... some day
         table.setStyleNames(row, 8, event.getStatusStyle());
         table.setStyleNames(row, 1, event.getTypeStyle());
@@ -117,10 +137,22 @@ public class EventsTable extends PagedTable<Event>
     protected SmartTable createContents (int start, int count, List<Event> list)
     {
         _checkboxen.clear();
+        _rows.clear();
+        _start = start;
         SmartTable table = super.createContents(start, count, list);
         table.addStyleName("uEventsTable");
         table.setCellSpacing(0);
         table.setCellPadding(0);
+
+        // let the agent know if there may be more events than we have pages for
+        if (getModel() instanceof SeekPagedDataModel<?> &&
+                ((SeekPagedDataModel<?>)getModel()).isCountEstimated()) {
+            int row = table.getRowCount();
+            table.setText(row, 0, _msgs.estimatedEventCount(
+                String.valueOf(getModel().getItemCount())));
+            table.getFlexCellFormatter().setColSpan(row, 0, createHeader().size());
+            table.getFlexCellFormatter().setStyleName(row, 0, "Estimate");
+        }
         return table;
     }
 
@@ -155,6 +187,83 @@ public class EventsTable extends PagedTable<Event>
         }
     }
 
+    protected void pollEvents (final long since)
+    {
+        _ctx.svc.pollEvents(since, new AsyncCallback<SlingService.EventUpdates>() {
+            public void onSuccess (SlingService.EventUpdates result) {
+                if (!isAttached()) {
+                    return;
+                }
+                if (result.reset) {
+                    if (_start == 0) {
+                        displayPage(0, true);
+                    }
+                } else {
+                    for (Event event : result.events) {
+                        updateEvent(event);
+                    }
+                }
+                pollEvents(result.seq);
+            }
+
+            public void onFailure (Throwable cause) {
+                // the server may be restarting, try again shortly
+                new Timer() {
+                    @Override public void run () {
+                        if (isAttached()) {
+                            pollEvents(since);
+                        }
+                    }
+                }.schedule(POLL_RETRY_DELAY);
+            }
+        });
+    }
+
+    /**
+     * Redraws the row of the given changed event, or adds it if it has just joined the open queue
+     * and we are showing the first page.
+     */
+    protected void updateEvent (Event event)
+    {
+        boolean queued = event.status.isOpen() && !event.waitingForPlayer;
+        Integer row = _rows.get(event.eventId);
+        if (row == null) {
+            if (!queued || _start != 0) {
+                return;
+            }
+            if (_rows.isEmpty()) {
+                // nothing to add a row to, so just reload
+                displayPage(0, true);
+                return;
+            }
+
+            row = Collections.min(_rows.values());
+            _table.insertRow(row);
+            for (Map.Entry<Integer, Integer> entry : _rows.entrySet()) {
+                if (entry.getValue() >= row) {
+                    entry.setValue(entry.getValue() + 1);
+                }
+            }
+        }
+
+        // replace the widgets in the row, dropping the old check box if there was one
+        for (Iterator<CheckBox> iter = _checkboxen.iterator(); iter.hasNext(); ) {
+            if (iter.next().getName().equals(String.valueOf(event.eventId))) {
+                iter.remove();
+            }
+        }
+        List<Widget> cells = createRow(event);
+        for (int col = 0; col < cells.size(); col++) {
+            _table.setWidget(row, col, cells.get(col));
+        }
+        didAddRow(_table, row, event);
+        if (queued) {
+            _table.getRowFormatter().removeStyleName(row, "Handled");
+        } else {
+            _table.getRowFormatter().addStyleName(row, "Handled");
+        }
+    }
+
     protected void ignoreSelected ()
     {
         List<Integer> checkedIds = Lists.newArrayList();
@@ -184,5 +293,15 @@ public class EventsTable extends PagedTable<Event>
 
     protected SlingContext _ctx;
     protected List<CheckBox> _checkboxen = Lists.newArrayList();
+
+    /** The table showing the current page, and the row of each event in it. */
+    protected SmartTable _table;
+    protected Map<Integer, Integer> _rows = Maps.newHashMap();
+
+    /** The index of the first event on the current page. */
+    protected int _start;
+
+    /** Wait this long before polling again after a failure. */
+    protected static final int POLL_RETRY_DELAY = 10 * 1000;
     protected static final ClientMessages _msgs = GWT.create(ClientMessages.class);
 }
@@ -38,6 +38,14 @@ public class RelatedAccountsPanel extends NamedRowSmartTable
      */
     public RelatedAccountsPanel (SlingContext ctx, String accountName,
         int accountId, List<MachineIdentity> idents)
+    {
+        this(ctx, _msgs.accountsRelatedToAccount(accountName, String.valueOf(accountId)), idents);
+    }
+
+    /**
+     * Creates a new related accounts panel with the given title.
+     */
+    public RelatedAccountsPanel (SlingContext ctx, String title, List<MachineIdentity> idents)
     {
         _ctx = ctx;
         _idents = idents;
@@ -45,8 +53,7 @@ public class RelatedAccountsPanel extends NamedRowSmartTable
         setStyleName("uRelatedAccounts");
 
         int row = 0;
-        cell(row, 0).styles("Title").colSpan(2).text(
-            _msgs.accountsRelatedToAccount(accountName, String.valueOf(accountId)));
+        cell(row, 0).styles("Title").colSpan(2).text(title);
         row++;
 
         cell(row, 0).text("").colSpan(2).styles("Status");
@@ -210,6 +217,9 @@ public class RelatedAccountsPanel extends NamedRowSmartTable
 
         String id = ident.machIdent;
         id = id.length() > 4 ? id.substring(0, 4) : id;
+        if (ident.hops > 1) {
+            id = _msgs.identHops(id, String.valueOf(ident.hops));
+        }
         return Widgets.newRow("Ident", new Label(id), top);
     }
 
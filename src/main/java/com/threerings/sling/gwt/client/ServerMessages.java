@@ -23,4 +23,6 @@ public interface ServerMessages extends ConstantsWithLookup
     public String game_link_down ();
     public String game_link_rpc_failed ();
     public String invalid_name ();
+    public String event_changed ();
+    public String events_changed ();
 }
@@ -36,7 +36,7 @@ public class SlingNav
         public static final SectionId ID = new SectionId("accounts");
 
         public static enum Mode {
-            SEARCH, POSTNOTE, RELATED, CREATE;
+            SEARCH, POSTNOTE, RELATED, LINKED, CREATE;
         }
 
         public static enum SearchBy
@@ -77,6 +77,12 @@ public class SlingNav
                 accountName, Integer.toString(accountId)));
         }
 
+        public static PageAddress findLinked (int accountId, String accountName)
+        {
+            return new PageAddress(ID, new Arguments(Nav.toArg(Mode.LINKED),
+                accountName, Integer.toString(accountId)));
+        }
+
         public static PageAddress createAccount ()
         {
             return new PageAddress(ID, new Arguments(Nav.toArg(Mode.CREATE)));
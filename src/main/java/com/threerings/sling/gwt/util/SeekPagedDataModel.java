@@ -0,0 +1,69 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.gwt.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+import com.threerings.gwt.util.PagedRequest;
+import com.threerings.gwt.util.PagedResult;
+import com.threerings.gwt.util.PagedServiceDataModel;
+import com.threerings.sling.web.data.PageCursor;
+import com.threerings.sling.web.data.SeekPagedRequest;
+import com.threerings.sling.web.data.SeekPagedResult;
+
+/**
+ * A paged data model that remembers the position at which each page it has loaded ends, so that
+ * the server can seek directly to the following page instead of counting from the start.
+ */
+public abstract class SeekPagedDataModel<T> extends PagedServiceDataModel<T, PagedResult<T>>
+{
+    @Override // from PagedServiceDataModel
+    protected void callFetchService (
+        final PagedRequest request, final AsyncCallback<PagedResult<T>> callback)
+    {
+        callSeekService(new SeekPagedRequest(request, _cursors.get(request.offset)),
+            new AsyncCallback<PagedResult<T>>() {
+                public void onSuccess (PagedResult<T> result) {
+                    if (result instanceof SeekPagedResult<?>) {
+                        SeekPagedResult<?> sresult = (SeekPagedResult<?>)result;
+                        if (sresult.next != null) {
+                            _cursors.put(sresult.next.offset, sresult.next);
+                        }
+                        if (request.needCount) {
+                            _estimated = sresult.estimated;
+                        }
+                    }
+                    callback.onSuccess(result);
+                }
+
+                public void onFailure (Throwable cause) {
+                    callback.onFailure(cause);
+                }
+            });
+    }
+
+    /**
+     * Returns true if the server did not count the results exactly, in which case the item
+     * count is a lower bound.
+     */
+    public boolean isCountEstimated ()
+    {
+        return _estimated;
+    }
+
+    /**
+     * Calls the service to fetch the requested page.
+     */
+    protected abstract void callSeekService (
+        SeekPagedRequest request, AsyncCallback<PagedResult<T>> callback);
+
+    /** Page start positions returned by the server, keyed by offset. */
+    protected Map<Integer, PageCursor> _cursors = new HashMap<Integer, PageCursor>();
+
+    /** Whether the item count is an estimate. */
+    protected boolean _estimated;
+}
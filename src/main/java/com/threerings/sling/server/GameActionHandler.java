@@ -4,12 +4,19 @@
 package com.threerings.sling.server;
 
 import java.sql.Timestamp;
+import java.util.concurrent.CompletableFuture;
 
 import com.threerings.sling.web.client.SlingException;
 
 /**
  * Provides game-specific action handling to our support system. The application is expected to
  * bind an instance of this or else guice will complain.
+ *
+ * <p>Each action has an asynchronous variant, used when several actions are performed at once.
+ * By default these perform the synchronous action on a small shared pool of threads, with a
+ * bounded queue; when the queue is full, they fail at once with m.game_link_rpc_failed. Handlers
+ * that talk to the game server should override them to return without tying up a thread, for
+ * example using {@link com.threerings.slink.client.SlinkWaiter#submit}.</p>
  */
 public interface GameActionHandler
 {
@@ -39,4 +46,55 @@ public interface GameActionHandler
     void sendMessage (String senderAccount, String recipAccount,
         String recipHandle, String message)
         throws SlingException;
+
+    /**
+     * Performs {@link #ban} asynchronously. The future fails with a {@link SlingException}.
+     */
+    default CompletableFuture<Void> banAsync (final String accountName)
+    {
+        return GameActions.perform(new GameActions.Action() {
+            public void perform () throws SlingException {
+                ban(accountName);
+            }
+        });
+    }
+
+    /**
+     * Performs {@link #tempBan} asynchronously. The future fails with a {@link SlingException}.
+     */
+    default CompletableFuture<Void> tempBanAsync (
+        final String accountName, final Timestamp expires, final String warning)
+    {
+        return GameActions.perform(new GameActions.Action() {
+            public void perform () throws SlingException {
+                tempBan(accountName, expires, warning);
+            }
+        });
+    }
+
+    /**
+     * Performs {@link #warn} asynchronously. The future fails with a {@link SlingException}.
+     */
+    default CompletableFuture<Void> warnAsync (final String accountName, final String warning)
+    {
+        return GameActions.perform(new GameActions.Action() {
+            public void perform () throws SlingException {
+                warn(accountName, warning);
+            }
+        });
+    }
+
+    /**
+     * Performs {@link #sendMessage} asynchronously. The future fails with a {@link
+     * SlingException}.
+     */
+    default CompletableFuture<Void> sendMessageAsync (final String senderAccount,
+        final String recipAccount, final String recipHandle, final String message)
+    {
+        return GameActions.perform(new GameActions.Action() {
+            public void perform () throws SlingException {
+                sendMessage(senderAccount, recipAccount, recipHandle, message);
+            }
+        });
+    }
 }
@@ -0,0 +1,76 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.threerings.sling.web.client.SlingException;
+
+/**
+ * Runs the synchronous actions of a {@link GameActionHandler} on a shared pool of threads, for
+ * the default implementations of its asynchronous variants.
+ */
+class GameActions
+{
+    /**
+     * A synchronous game action.
+     */
+    interface Action
+    {
+        void perform ()
+            throws SlingException;
+    }
+
+    /**
+     * Starts the given action on our pool and returns a future for its completion. The future
+     * fails with the {@link SlingException} thrown by the action, if any.
+     */
+    static CompletableFuture<Void> perform (final Action action)
+    {
+        try {
+            return CompletableFuture.supplyAsync(new Supplier<Void>() {
+                public Void get () {
+                    try {
+                        action.perform();
+                        return null;
+                    } catch (SlingException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, _executor);
+        } catch (RejectedExecutionException ree) {
+            // fail fast rather than queue behind a game that is not keeping up
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.completeExceptionally(new SlingException("m.game_link_rpc_failed"));
+            return future;
+        }
+    }
+
+    /** The most actions we run at once. */
+    protected static final int ACTION_THREADS = 4;
+
+    /** The most actions that wait for a thread. */
+    protected static final int MAX_QUEUED_ACTIONS = 100;
+
+    /** Runs the actions. Handlers wait on the game, so a few threads allow some overlap without
+     * letting a slow game tie up many threads. Once {@link #MAX_QUEUED_ACTIONS} are waiting,
+     * further actions fail immediately. */
+    protected static ExecutorService _executor = new ThreadPoolExecutor(
+        ACTION_THREADS, ACTION_THREADS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_ACTIONS), new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "GameActions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+}
@@ -0,0 +1,123 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Resolves game names using the {@link GameInfoProvider}, merging lookups that arrive within
+ * {@link #BATCH_WINDOW} of each other into a single call. Calls are made on a background thread
+ * once the window of their batch has passed.
+ *
+ * <p>There is only one such thread, so calls are made one at a time, and a call that hangs
+ * stalls all resolution until it returns. Callers of {@link #resolve} give up after {@link
+ * #RESOLVE_TIMEOUT}, but the batches behind a hung call are not resolved until it returns, so
+ * the provider should time out its own calls.</p>
+ */
+@Singleton
+public class GameNameResolver
+{
+    /**
+     * Resolves the game names of the given accounts, waiting up to {@link #RESOLVE_TIMEOUT} for
+     * the result. The returned map may also contain the game names of other accounts resolved in
+     * the same batch.
+     *
+     * @throws UncheckedTimeoutException if the result takes too long.
+     */
+    public Multimap<String, String> resolve (Set<String> accounts)
+    {
+        try {
+            return Uninterruptibles.getUninterruptibly(
+                resolveLater(accounts), RESOLVE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) {
+            throw Throwables.propagate(ee.getCause());
+        } catch (TimeoutException te) {
+            throw new UncheckedTimeoutException("Timed out resolving game names", te);
+        }
+    }
+
+    /**
+     * Resolves the game names of the given accounts without waiting for the result. The
+     * resulting map may also contain the game names of other accounts resolved in the same batch.
+     */
+    public synchronized CompletableFuture<Multimap<String, String>> resolveLater (
+        Set<String> accounts)
+    {
+        if (_batch == null) {
+            final Batch batch = _batch = new Batch();
+            _executor.schedule(new Runnable() {
+                public void run () {
+                    resolve(batch);
+                }
+            }, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+        _batch.accounts.addAll(accounts);
+        return _batch.result;
+    }
+
+    /**
+     * Closes the given batch to further lookups and resolves it.
+     */
+    protected void resolve (Batch batch)
+    {
+        synchronized (this) {
+            _batch = null;
+        }
+        try {
+            Multimap<String, String> gameNames = ArrayListMultimap.create();
+            _infoProvider.resolveGameNames(batch.accounts, gameNames);
+            batch.result.complete(gameNames);
+        } catch (Throwable t) {
+            // fail the callers rather than leave them waiting on a result that never comes
+            batch.result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * The accounts to be resolved in one call, and the result of the call.
+     */
+    protected static class Batch
+    {
+        public final Set<String> accounts = Sets.newHashSet();
+        public final CompletableFuture<Multimap<String, String>> result =
+            new CompletableFuture<Multimap<String, String>>();
+    }
+
+    @Inject protected GameInfoProvider _infoProvider;
+
+    /** The batch that lookups are currently joining, if any. */
+    protected Batch _batch;
+
+    /** Makes our calls to the provider. */
+    protected ScheduledExecutorService _executor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "GameNameResolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** How long a batch waits for other lookups to join it. */
+    protected static final long BATCH_WINDOW = 5;
+
+    /** How long {@link #resolve} waits for its result. */
+    protected static final long RESOLVE_TIMEOUT = 10 * 1000L;
+}
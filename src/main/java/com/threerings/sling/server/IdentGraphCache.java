@@ -0,0 +1,136 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.threerings.sling.server.persist.IdentUserRepository;
+import com.threerings.user.OOOUserCard;
+
+/**
+ * Caches which users have used which machine idents, in both directions, for exploring the graph
+ * of related accounts. Entries missing from the cache are loaded together, in chunks that are
+ * queried in parallel.
+ */
+@Singleton
+public class IdentGraphCache
+{
+    /**
+     * Returns the users of each of the given machine idents.
+     */
+    public Map<String, List<OOOUserCard>> getUsersOfIdents (Collection<String> idents)
+    {
+        return getAll(_usersOfIdent, idents,
+            new Function<List<String>, Multimap<String, OOOUserCard>>() {
+                public Multimap<String, OOOUserCard> apply (List<String> chunk) {
+                    return _identUserRepo.loadUsersOfMachIdents(chunk);
+                }
+            });
+    }
+
+    /**
+     * Returns the machine idents used by each of the given users.
+     */
+    public Map<String, List<String>> getIdentsOfUsers (Collection<String> usernames)
+    {
+        return getAll(_identsOfUser, usernames,
+            new Function<List<String>, Multimap<String, String>>() {
+                public Multimap<String, String> apply (List<String> chunk) {
+                    return _identUserRepo.loadMachIdentsOfUsers(chunk);
+                }
+            });
+    }
+
+    protected <V> Map<String, List<V>> getAll (Cache<String, List<V>> cache,
+        Collection<String> keys, final Function<List<String>, Multimap<String, V>> loader)
+    {
+        Map<String, List<V>> values = Maps.newHashMap(cache.getAllPresent(keys));
+        Set<String> missing = Sets.newHashSet(keys);
+        missing.removeAll(values.keySet());
+
+        List<List<String>> chunks = Lists.partition(Lists.newArrayList(missing), CHUNK_SIZE);
+        List<Future<Multimap<String, V>>> loads = Lists.newArrayList();
+        for (final List<String> chunk : chunks) {
+            loads.add(_executor.submit(new Callable<Multimap<String, V>>() {
+                public Multimap<String, V> call () {
+                    return loader.apply(chunk);
+                }
+            }));
+        }
+
+        for (int ii = 0; ii < chunks.size(); ii++) {
+            Multimap<String, V> loaded;
+            try {
+                loaded = Uninterruptibles.getUninterruptibly(loads.get(ii));
+            } catch (ExecutionException ee) {
+                throw Throwables.propagate(ee.getCause());
+            }
+            for (String key : chunks.get(ii)) {
+                List<V> keyValues = ImmutableList.copyOf(loaded.get(key));
+                cache.put(key, keyValues);
+                values.put(key, keyValues);
+            }
+        }
+        return values;
+    }
+
+    @Inject protected IdentUserRepository _identUserRepo;
+
+    /** The users of each machine ident. */
+    protected Cache<String, List<OOOUserCard>> _usersOfIdent = CacheBuilder.newBuilder()
+        .expireAfterWrite(CACHE_EXPIRY, TimeUnit.MILLISECONDS)
+        .maximumSize(MAX_CACHED_NODES)
+        .build();
+
+    /** The machine idents of each user. */
+    protected Cache<String, List<String>> _identsOfUser = CacheBuilder.newBuilder()
+        .expireAfterWrite(CACHE_EXPIRY, TimeUnit.MILLISECONDS)
+        .maximumSize(MAX_CACHED_NODES)
+        .build();
+
+    /** Runs our queries. */
+    protected ExecutorService _executor = Executors.newFixedThreadPool(
+        QUERY_THREADS, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "IdentGraphCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** How long we cache the links of an ident or user. */
+    protected static final long CACHE_EXPIRY = 10 * 60 * 1000L;
+
+    /** The most idents, and the most users, we cache the links of. */
+    protected static final int MAX_CACHED_NODES = 50000;
+
+    /** The most idents or users whose links are loaded in one query. */
+    protected static final int CHUNK_SIZE = 100;
+
+    /** The most queries we run at once. */
+    protected static final int QUERY_THREADS = 4;
+}
@@ -3,25 +3,35 @@
 
 package com.threerings.sling.server;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import com.google.common.base.Predicates;
 import com.google.common.base.Supplier;
-import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Collections2;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -41,10 +51,12 @@ import com.samskivert.servlet.user.Username;
 import com.samskivert.depot.DatabaseException;
 import com.samskivert.depot.PersistenceContext;
 
+import com.threerings.sling.server.persist.IdentUserRepository;
 import com.threerings.sling.web.client.SlingException;
 import com.threerings.sling.web.data.Account;
 import com.threerings.sling.web.data.AccountName;
 import com.threerings.sling.web.data.MachineIdentity;
+import com.threerings.sling.web.data.RelatedAccountGraph;
 import com.threerings.user.OOOUser;
 import com.threerings.user.OOOUserCard;
 import com.threerings.user.OOOUserManager;
@@ -211,19 +223,102 @@ public class UserLogic
             return Lists.newArrayList();
         }
 
+        // collect a list of related accounts for each ident
+        List<String> idents = Arrays.asList(user.machIdents);
+        Multimap<String, OOOUserCard> cardsForIdents = _identUserRepo.loadUsersOfMachIdents(idents);
+        return toMachineIdentities(siteId, accountId, idents, cardsForIdents.asMap());
+    }
+
+    /**
+     * Finds the machine idents connected to the given account through chains of accounts that
+     * share them, up to the given number of idents away, and the accounts that have used them.
+     * Stops exploring once the given number of accounts or idents has been found, leaving out
+     * any accounts and idents beyond that.
+     */
+    public RelatedAccountGraph getRelatedAccountGraph (
+        int siteId, int accountId, int maxHops, int maxAccounts, int maxIdents)
+        throws SlingException
+    {
+        OOOUser user = _userRepo.loadUser(accountId);
+        if (user == null) {
+            throw new SlingException("m.unknown_user");
+        }
+
+        // search outward one hop at a time, through the idents of the accounts found last time
+        RelatedAccountGraph graph = new RelatedAccountGraph();
+        Map<String, Integer> identHops = Maps.newLinkedHashMap();
+        Map<String, List<OOOUserCard>> cardsForIdents = Maps.newHashMap();
+        Set<String> found = Sets.newHashSet(user.username);
+        List<String> frontier = Lists.newArrayList(user.username);
+        for (int hop = 1; hop <= maxHops && !frontier.isEmpty() && !graph.truncated; hop++) {
+            List<String> idents = Lists.newArrayList();
+            for (List<String> userIdents : _identGraph.getIdentsOfUsers(frontier).values()) {
+                for (String ident : userIdents) {
+                    if (identHops.containsKey(ident)) {
+                        continue;
+                    }
+                    if (identHops.size() >= maxIdents) {
+                        graph.truncated = true;
+                        break;
+                    }
+                    identHops.put(ident, hop);
+                    idents.add(ident);
+                }
+            }
+
+            // only the accounts within budget are shown or explored; accounts we have already
+            // found are shown with every ident they used
+            Map<String, List<OOOUserCard>> loaded = _identGraph.getUsersOfIdents(idents);
+            frontier = Lists.newArrayList();
+            for (String ident : idents) {
+                List<OOOUserCard> cards = Lists.newArrayList();
+                for (OOOUserCard card : loaded.get(ident)) {
+                    if (found.contains(card.username)) {
+                        cards.add(card);
+                    } else if (found.size() < maxAccounts) {
+                        found.add(card.username);
+                        frontier.add(card.username);
+                        cards.add(card);
+                    } else {
+                        graph.truncated = true;
+                    }
+                }
+                cardsForIdents.put(ident, cards);
+            }
+        }
+
+        graph.idents = toMachineIdentities(
+            siteId, accountId, identHops.keySet(), cardsForIdents);
+        for (MachineIdentity ident : graph.idents) {
+            ident.hops = identHops.get(ident.machIdent);
+        }
+        return graph;
+    }
+
+    /**
+     * Creates the machine identities for the given idents, with their ban and taint status and
+     * the names and status of the accounts that have used them.
+     * @param accountId the account whose relations these are, for logging
+     */
+    protected List<MachineIdentity> toMachineIdentities (int siteId, int accountId,
+        Collection<String> idents, Map<String, ? extends Collection<OOOUserCard>> cardsForIdents)
+        throws SlingException
+    {
+        if (idents.isEmpty()) {
+            return Lists.newArrayList();
+        }
+        String[] identArray = idents.toArray(new String[idents.size()]);
+
         // determine which are tainted
-        Collection<String> tainted = _userRepo.filterTaintedIdents(user.machIdents);
+        Collection<String> tainted = _userRepo.filterTaintedIdents(identArray);
 
         // determine which are banned
-        Collection<String> banned = _userRepo.filterBannedIdents(user.machIdents, siteId);
+        Collection<String> banned = _userRepo.filterBannedIdents(identArray, siteId);
 
-        // collect all account names and a list of related accounts for each ident
+        // collect all account names
         Set<String> names = Sets.newHashSet();
-        Map<String, List<OOOUserCard>> cardsForIdents = Maps.newHashMap();
-        for (String id : user.machIdents) {
-            List<OOOUserCard> idNames = Lists.newArrayList(_userRepo.getUsersOfMachIdentCards(id));
-            cardsForIdents.put(id, idNames);
-            names.addAll(Lists.transform(idNames, OOOUserCard.TO_USERNAME));
+        for (Collection<OOOUserCard> cards : cardsForIdents.values()) {
+            names.addAll(Collections2.transform(cards, OOOUserCard.TO_USERNAME));
         }
 
         // get banned names
@@ -234,28 +329,27 @@ public class UserLogic
 
         // convert games names to "usernames"
         // TODO: this is confusing, do we need the concept of usernames?
-        Set<String> usernames = Sets.newHashSet();
-        for (String name : names) {
-            String username = getUsername(name);
-            if (username != null) {
-                usernames.add(username);
-            }
-        }
+        Map<String, String> usernames = getUsernames(names);
 
         // now get games names for all usernames
-        Map<String, AccountName> accountNamesForUsernames = resolveNames(usernames);
+        Map<String, AccountName> accountNamesForUsernames =
+            resolveNames(Sets.newHashSet(usernames.values()));
 
         // coallate it all into a nice tidy list of MachineIdentity
         // Beware, this is complicated by names != usernames
-        List<MachineIdentity> relations = Lists.newArrayListWithCapacity(user.machIdents.length);
-        for (String id : user.machIdents) {
+        List<MachineIdentity> relations = Lists.newArrayListWithCapacity(idents.size());
+        for (String id : idents) {
             MachineIdentity ident = new MachineIdentity(
                 id, tainted.contains(id), banned.contains(id));
-            List<OOOUserCard> idCards = cardsForIdents.get(id);
+            Collection<OOOUserCard> idCards = cardsForIdents.get(id);
+            if (idCards == null) {
+                idCards = ImmutableList.of();
+            }
             ident.accounts = Lists.newArrayListWithCapacity(idCards.size());
             for (OOOUserCard card : idCards) {
                 MachineIdentity.AccountInfo info = new MachineIdentity.AccountInfo();
-                info.name = accountNamesForUsernames.get(getUsername(card.username));
+                String username = usernames.get(card.username);
+                info.name = (username == null) ? null : accountNamesForUsernames.get(username);
                 if (info.name == null) {
                     log.warning("Unable to resolve related account",
                         "accountId", accountId, "name", card.username);
@@ -395,24 +489,13 @@ public class UserLogic
     public Map<String, AccountName> resolveNames (Set<String> accounts)
     {
         accounts = Sets.filter(accounts, Predicates.notNull());
-        Set<String> toResolve = Sets.difference(accounts, _names.asMap().keySet());
-
-        if (!toResolve.isEmpty()) {
-            ArrayListMultimap<String, String> gameNames = ArrayListMultimap.create();
-            _infoProvider.resolveGameNames(toResolve, gameNames);
-
-            for (String account : toResolve) {
-                _names.put(account,
-                    new AccountName(account, _sortGameNames.sortedCopy(gameNames.get(account))));
-            }
-        }
-
-        Map<String, AccountName> resolved = Maps.newHashMap();
-        for (String account : accounts) {
-            AccountName accName = _names.getIfPresent(account);
-            resolved.put(account, accName == null ? new AccountName(account) : accName);
+        try {
+            // missing names are loaded in one batch, and names already being loaded by another
+            // thread are waited for rather than loaded again
+            return Maps.newHashMap(_names.getAll(accounts));
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause()); // our loader throws no checked exceptions
         }
-        return resolved;
     }
 
     public AccountName resolveName (String username)
@@ -426,12 +509,9 @@ public class UserLogic
      */
     public void invalidateCharacterName (String oldName)
     {
-        for (Iterator<AccountName> iter = _names.asMap().values().iterator(); iter.hasNext();) {
-            AccountName acct = iter.next();
-            if (acct.gameNames.contains(oldName)) {
-                iter.remove();
-                break;
-            }
+        String account = _accountsByGameName.remove(oldName);
+        if (account != null) {
+            _names.invalidate(account);
         }
     }
 
@@ -518,6 +598,24 @@ public class UserLogic
         return username;
     }
 
+    /**
+     * Returns the usernames for the given names, as {@link #getUsername(String)} does, leaving
+     * out those that could not be found. Overridden in cases where they can be looked up more
+     * efficiently together.
+     */
+    protected Map<String, String> getUsernames (Collection<String> names)
+        throws SlingException
+    {
+        Map<String, String> usernames = Maps.newHashMap();
+        for (String name : names) {
+            String username = getUsername(name);
+            if (username != null) {
+                usernames.put(name, username);
+            }
+        }
+        return usernames;
+    }
+
     /**
      * Sets the given record to use the given username. Overridden in cases where the setting of
      * the name may have other side effects within the passed record. Callers must treat all fields
@@ -555,16 +653,79 @@ public class UserLogic
     };
 
     @Inject protected GameInfoProvider _infoProvider;
+    @Inject protected IdentUserRepository _identUserRepo;
+    @Inject protected IdentGraphCache _identGraph;
     @Inject protected DepotUserRepository _userRepo;
     @Inject protected SiteIdentifier _siteIdentifier;
     @Inject protected Config _config;
 
     protected Supplier<DepotUserManager> _userMgr;
 
-    /** A cache of resolved account names. */
-    protected Cache<String, AccountName> _names = CacheBuilder.newBuilder()
-        .expireAfterWrite(NAME_REFRESH_INTERVAL, TimeUnit.MILLISECONDS)
-        .build();
+    @Inject protected GameNameResolver _gameNames;
+
+    /** A cache of resolved account names. Names older than {@link #NAME_REFRESH_INTERVAL} are
+     * still returned, but reloaded in the background. Accounts with no game names are cached
+     * like any other, so they are not looked up again each time they are shown. */
+    protected LoadingCache<String, AccountName> _names = CacheBuilder.newBuilder()
+        .refreshAfterWrite(NAME_REFRESH_INTERVAL, TimeUnit.MILLISECONDS)
+        .expireAfterWrite(NAME_EXPIRY_INTERVAL, TimeUnit.MILLISECONDS)
+        .maximumSize(MAX_CACHED_NAMES)
+        .removalListener(new RemovalListener<String, AccountName>() {
+            public void onRemoval (RemovalNotification<String, AccountName> removal) {
+                // a replacement is indexed when it is loaded, so keep the names it still has
+                AccountName current = _names.getIfPresent(removal.getKey());
+                for (String gameName : removal.getValue().gameNames) {
+                    if (current == null || !current.gameNames.contains(gameName)) {
+                        _accountsByGameName.remove(gameName, removal.getKey());
+                    }
+                }
+            }
+        })
+        .build(new CacheLoader<String, AccountName>() {
+            @Override public AccountName load (String account) {
+                return loadAll(ImmutableSet.of(account)).get(account);
+            }
+
+            @Override public Map<String, AccountName> loadAll (
+                Iterable<? extends String> accounts) {
+                Set<String> toResolve = ImmutableSet.copyOf(accounts);
+                Multimap<String, String> gameNames = _gameNames.resolve(toResolve);
+                Map<String, AccountName> resolved = Maps.newHashMap();
+                for (String account : toResolve) {
+                    resolved.put(account, toAccountName(account, gameNames));
+                }
+                return resolved;
+            }
+
+            @Override public ListenableFuture<AccountName> reload (
+                final String account, AccountName oldName) {
+                // refreshes of names accessed around the same time share a batch
+                final SettableFuture<AccountName> reloaded = SettableFuture.create();
+                _gameNames.resolveLater(ImmutableSet.of(account)).whenComplete(
+                    new BiConsumer<Multimap<String, String>, Throwable>() {
+                        public void accept (Multimap<String, String> gameNames, Throwable cause) {
+                            if (cause != null) {
+                                reloaded.setException(cause);
+                            } else {
+                                reloaded.set(toAccountName(account, gameNames));
+                            }
+                        }
+                    });
+                return reloaded;
+            }
+
+            protected AccountName toAccountName (
+                String account, Multimap<String, String> gameNames) {
+                for (String gameName : gameNames.get(account)) {
+                    _accountsByGameName.put(gameName, account);
+                }
+                return new AccountName(
+                    account, _sortGameNames.sortedCopy(gameNames.get(account)));
+            }
+        });
+
+    /** The account name of each game name in {@link #_names}. */
+    protected ConcurrentMap<String, String> _accountsByGameName = Maps.newConcurrentMap();
 
     protected static final Authenticator AUTHER = new OOOUserManager.OOOAuthenticator();
 
@@ -573,4 +734,10 @@ public class UserLogic
 
     /** Refresh our cached namess every five minutes. */
     protected static final long NAME_REFRESH_INTERVAL = 5 * 60 * 1000L;
+
+    /** Drop cached names that have not been refreshed for an hour. */
+    protected static final long NAME_EXPIRY_INTERVAL = 60 * 60 * 1000L;
+
+    /** The most account names we cache; the least recently used are dropped first. */
+    protected static final int MAX_CACHED_NAMES = 20000;
 }
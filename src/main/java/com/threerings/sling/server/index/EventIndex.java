@@ -0,0 +1,561 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.index;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static com.threerings.sling.Log.log;
+
+/**
+ * An inverted index from the words in event subjects, chat histories and notes to the ids of the
+ * events containing them. The index is held in memory and kept on disk as a snapshot plus a
+ * journal of the words added since the snapshot was written.
+ *
+ * <p>Additions are applied in memory and queued for a background writer, which appends them to
+ * the journal and syncs it, a batch at a time, and which writes a new snapshot when the journal
+ * grows large. Callers never wait for the disk. An addition that was not yet synced when the
+ * server stopped is lost, which is covered by re-adding from the database as described below.
+ * Each journal record carries a checksum, so a record torn by a crash is detected on the next
+ * open and the journal is truncated to the last complete record. Snapshots are written to a temporary
+ * file and renamed over the old one, so there is always either a complete old snapshot or a
+ * complete new one. If the snapshot is missing or fails its checksum, the index opens empty and
+ * reports that it is not ready, and the owner is expected to repopulate it with a rebuild.</p>
+ *
+ * <p>Additions are idempotent, so it is always safe to add the same text twice, and adding text
+ * that is already indexed does not touch the journal. The owner should re-add anything entered
+ * around the time of the {@link #getWatermark watermark} after opening, to cover records that
+ * were stored in the database but not yet journaled when the server stopped.</p>
+ *
+ * <p>The index only knows what it is given. When several servers share a database, each must
+ * feed its own index with what the others store, and must not trust it for anything stored
+ * since it last did so.</p>
+ */
+public class EventIndex
+{
+    /** The parts of an event that are indexed. Each has its own set of terms. */
+    public enum Field
+    {
+        SUBJECT('s'), CHAT_HISTORY('c'), NOTE('n');
+
+        /** The prefix for terms from this field. */
+        public final char code;
+
+        Field (char code)
+        {
+            this.code = code;
+        }
+    }
+
+    /** The length of the shortest word that is indexed. */
+    public static final int MIN_WORD_LENGTH = 3;
+
+    /** The length of the longest word that is indexed. Longer words are usually junk. */
+    public static final int MAX_WORD_LENGTH = 64;
+
+    /**
+     * Opens the index stored in the given directory, creating the directory if needed.
+     */
+    public EventIndex (File dir)
+        throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create index directory " + dir);
+        }
+        _snapshotFile = new File(dir, "events.idx");
+        _journalFile = new File(dir, "events.log");
+
+        try {
+            _ready = readSnapshot();
+        } catch (IOException ioe) {
+            log.warning("Event index snapshot is unusable, index must be rebuilt",
+                "file", _snapshotFile, "error", ioe);
+            _terms.clear();
+            _watermark = 0;
+        }
+        replayJournal();
+        _journal = new FileOutputStream(_journalFile, true);
+    }
+
+    /**
+     * Returns true if the index covers all events. If not, searches should not use it.
+     */
+    public synchronized boolean isReady ()
+    {
+        return _ready;
+    }
+
+    /**
+     * Returns the latest entry time of anything added to the index.
+     */
+    public synchronized long getWatermark ()
+    {
+        return _watermark;
+    }
+
+    /**
+     * Splits the given text into the words that are indexed, in lower case.
+     */
+    public static Set<String> words (String text)
+    {
+        Set<String> words = Sets.newHashSet();
+        if (text != null) {
+            for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+                if (word.length() >= MIN_WORD_LENGTH && word.length() <= MAX_WORD_LENGTH) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Adds the words of the given text to the index for the given event. The time is when the
+     * text was entered and advances the watermark. The addition is journaled in the background;
+     * if the journal cannot be written, the index stops reporting itself ready until it is
+     * rebuilt.
+     */
+    public synchronized void add (int eventId, long time, Field field, String text)
+    {
+        Set<String> words = words(text);
+        if (words.isEmpty()) {
+            return;
+        }
+        boolean added = addWords(_terms, eventId, field, words);
+        if (_building != null) {
+            addWords(_building, eventId, field, words);
+        }
+        _watermark = Math.max(_watermark, time);
+        if (!added) {
+            return; // already journaled
+        }
+
+        _pending.add(encodeRecord(eventId, time, field, words));
+        if (!_flushQueued) {
+            _flushQueued = true;
+            _writer.execute(new Runnable() {
+                public void run () {
+                    flushJournal();
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until everything added so far is in the journal or a snapshot.
+     */
+    public void flush ()
+        throws IOException
+    {
+        onWriter(new Callable<Void>() {
+            public Void call () throws IOException {
+                flushJournal();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the ids of events whose given field contains all of the given words, in ascending
+     * order. The words must already be in lower case.
+     */
+    public synchronized int[] lookup (Field field, Collection<String> words)
+    {
+        int[] ids = null;
+        for (String word : words) {
+            PostingList list = _terms.get(field.code + word);
+            if (list == null) {
+                return new int[0];
+            }
+            ids = (ids == null) ? list.toArray() : PostingList.intersect(ids, list.toArray());
+            if (ids.length == 0) {
+                break;
+            }
+        }
+        return (ids == null) ? new int[0] : ids;
+    }
+
+    /**
+     * Starts rebuilding the index. The caller should pass every existing event and note to
+     * {@link #addRebuilt} and then call {@link #finishRebuild}. Additions made with {@link #add}
+     * in the meantime go into both the current and the rebuilt index.
+     */
+    public synchronized void startRebuild ()
+    {
+        _building = Maps.newHashMap();
+        _buildingWatermark = _watermark;
+    }
+
+    /**
+     * Adds existing text to the index being rebuilt.
+     */
+    public synchronized void addRebuilt (int eventId, long time, Field field, String text)
+    {
+        if (_building == null) {
+            throw new IllegalStateException("No rebuild in progress");
+        }
+        addWords(_building, eventId, field, words(text));
+        _buildingWatermark = Math.max(_buildingWatermark, time);
+    }
+
+    /**
+     * Replaces the index with the rebuilt one and writes it out as the new snapshot.
+     */
+    public void finishRebuild ()
+        throws IOException
+    {
+        synchronized (this) {
+            if (_building == null) {
+                throw new IllegalStateException("No rebuild in progress");
+            }
+            _terms = _building;
+            _watermark = Math.max(_watermark, _buildingWatermark);
+            _building = null;
+            _ready = true;
+        }
+        checkpoint();
+    }
+
+    /**
+     * Abandons a rebuild started with {@link #startRebuild}.
+     */
+    public synchronized void abortRebuild ()
+    {
+        _building = null;
+    }
+
+    /**
+     * Writes the whole index to a new snapshot and empties the journal, waiting until it is done.
+     * This happens automatically in the background when the journal grows large. Does nothing if
+     * the index is not ready, since the snapshot would not cover all events.
+     */
+    public void checkpoint ()
+        throws IOException
+    {
+        onWriter(new Callable<Void>() {
+            public Void call () throws IOException {
+                writeSnapshot();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes out anything not yet journaled, stops the background writer and closes the
+     * journal. The index may not be modified afterwards.
+     */
+    public void close ()
+        throws IOException
+    {
+        try {
+            flush();
+        } finally {
+            _writer.shutdown();
+            synchronized (this) {
+                _journal.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the given disk operation on the writer thread, so that it is ordered with the journal
+     * writes, and waits for it to finish.
+     */
+    protected void onWriter (Callable<Void> op)
+        throws IOException
+    {
+        Future<Void> result = _writer.submit(op);
+        try {
+            Uninterruptibles.getUninterruptibly(result);
+        } catch (ExecutionException ee) {
+            Throwables.propagateIfPossible(ee.getCause(), IOException.class);
+            throw Throwables.propagate(ee.getCause());
+        }
+    }
+
+    /**
+     * Appends the queued additions to the journal and syncs it, then writes a new snapshot if the
+     * journal has grown too large. Only called on the writer thread.
+     */
+    protected void flushJournal ()
+    {
+        List<byte[]> records;
+        synchronized (this) {
+            records = _pending;
+            _pending = Lists.newArrayList();
+            _flushQueued = false;
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            for (byte[] record : records) {
+                bout.write(record);
+            }
+            _journal.write(bout.toByteArray());
+            _journal.getFD().sync();
+            if (_journal.getChannel().size() > MAX_JOURNAL_SIZE) {
+                writeSnapshot();
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to journal event index updates, index must be rebuilt",
+                "records", records.size(), "error", ioe);
+            synchronized (this) {
+                // the snapshot and journal no longer cover everything, so make sure they are not
+                // trusted if we restart before the rebuild
+                _ready = false;
+            }
+            _snapshotFile.delete();
+        }
+    }
+
+    /**
+     * Writes the whole index to a new snapshot and empties the journal. The index is encoded
+     * while locked, so that additions wait only for the encoding and not for the disk. Only
+     * called on the writer thread.
+     */
+    protected void writeSnapshot ()
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        synchronized (this) {
+            if (!_ready) {
+                return;
+            }
+            CheckedOutputStream cout = new CheckedOutputStream(bout, new CRC32());
+            DataOutputStream out = new DataOutputStream(cout);
+            out.writeInt(MAGIC);
+            out.writeLong(_watermark);
+            out.writeInt(_terms.size());
+            for (Map.Entry<String, PostingList> entry : _terms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.writeLong(cout.getChecksum().getValue());
+            out.flush();
+
+            // the snapshot covers everything added so far, so anything still queued need not be
+            // journaled, and anything added from now on is journaled after we truncate
+            _pending.clear();
+        }
+
+        File temp = new File(_snapshotFile.getPath() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(temp);
+        try {
+            bout.writeTo(fout);
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+        Files.move(temp.toPath(), _snapshotFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // if we crash before this, the journal is replayed over the new snapshot, which is
+        // harmless since additions are idempotent
+        _journal.getChannel().truncate(0);
+    }
+
+    /**
+     * Adds the given words of an event to the given terms. Returns true if any were new.
+     */
+    protected static boolean addWords (
+        Map<String, PostingList> terms, int eventId, Field field, Set<String> words)
+    {
+        boolean added = false;
+        for (String word : words) {
+            String term = field.code + word;
+            PostingList list = terms.get(term);
+            if (list == null) {
+                terms.put(term, list = new PostingList());
+            }
+            added |= list.add(eventId);
+        }
+        return added;
+    }
+
+    /**
+     * Loads the snapshot, if any. Returns false if there is no snapshot.
+     */
+    protected boolean readSnapshot ()
+        throws IOException
+    {
+        if (!_snapshotFile.exists()) {
+            return false;
+        }
+        CheckedInputStream cin = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(_snapshotFile)), new CRC32());
+        try {
+            DataInputStream in = new DataInputStream(cin);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad magic number");
+            }
+            long watermark = in.readLong();
+            long length = _snapshotFile.length();
+            for (int ii = 0, count = in.readInt(); ii < count; ++ii) {
+                String term = in.readUTF();
+                _terms.put(term, PostingList.read(in, length));
+            }
+            long expected = cin.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Checksum mismatch");
+            }
+            _watermark = watermark;
+            return true;
+        } finally {
+            cin.close();
+        }
+    }
+
+    /**
+     * Applies the journal to the loaded snapshot, truncating it after the last complete record.
+     */
+    protected void replayJournal ()
+        throws IOException
+    {
+        if (!_journalFile.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(_journalFile, "rw");
+        try {
+            long good = 0;
+            int records = 0;
+            while (true) {
+                byte[] data;
+                try {
+                    int length = raf.readInt();
+                    if (length < 0 || length > raf.length() - raf.getFilePointer()) {
+                        break;
+                    }
+                    data = new byte[length];
+                    raf.readFully(data);
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    if (raf.readLong() != crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException eofe) {
+                    break;
+                }
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                int eventId = in.readInt();
+                long time = in.readLong();
+                Field field = Field.values()[in.readByte()];
+                Set<String> words = Sets.newHashSet();
+                for (int ii = 0, count = in.readInt(); ii < count; ++ii) {
+                    words.add(in.readUTF());
+                }
+                addWords(_terms, eventId, field, words);
+                _watermark = Math.max(_watermark, time);
+                good = raf.getFilePointer();
+                records++;
+            }
+
+            if (good < raf.length()) {
+                log.warning("Discarding incomplete event index journal record",
+                    "file", _journalFile, "offset", good, "length", raf.length());
+                raf.setLength(good);
+            }
+            if (records > 0) {
+                log.info("Replayed event index journal", "records", records);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    protected static byte[] encodeRecord (int eventId, long time, Field field, Set<String> words)
+    {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bout);
+            data.writeInt(eventId);
+            data.writeLong(time);
+            data.writeByte(field.ordinal());
+            data.writeInt(words.size());
+            for (String word : words) {
+                data.writeUTF(word);
+            }
+            byte[] bytes = bout.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            bout = new ByteArrayOutputStream(bytes.length + 12);
+            data = new DataOutputStream(bout);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            data.writeLong(crc.getValue());
+            return bout.toByteArray();
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe); // not thrown by byte array streams
+        }
+    }
+
+    protected final File _snapshotFile, _journalFile;
+    protected FileOutputStream _journal;
+
+    /** Maps field code plus word to the events containing it. */
+    protected Map<String, PostingList> _terms = Maps.newHashMap();
+
+    /** The index being rebuilt, if any. */
+    protected Map<String, PostingList> _building;
+
+    protected long _watermark, _buildingWatermark;
+    protected boolean _ready;
+
+    /** The encoded journal records waiting for the writer. */
+    protected List<byte[]> _pending = Lists.newArrayList();
+
+    /** Whether the writer has been asked to write {@link #_pending}. */
+    protected boolean _flushQueued;
+
+    /** Writes the journal and snapshots, so that the threads adding to the index never wait for
+     * the disk. */
+    protected final ExecutorService _writer = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "EventIndexWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** The size of journal at which the index is automatically checkpointed. */
+    protected static final long MAX_JOURNAL_SIZE = 16 * 1024 * 1024;
+
+    /** Identifies a snapshot file, and its format version. */
+    protected static final int MAGIC = 0x534C4901;
+}
@@ -0,0 +1,174 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sorted set of positive event ids, stored as the differences between consecutive ids with
+ * each difference written as a variable length integer. Ids are normally added in ascending
+ * order, which just appends to the encoded bytes. Adding an id lower than the last one requires
+ * the list to be re-encoded. Not thread safe.
+ */
+public class PostingList
+{
+    /**
+     * Creates a new empty posting list.
+     */
+    public PostingList ()
+    {
+        _bytes = new byte[4];
+    }
+
+    /**
+     * Returns the number of ids in the list.
+     */
+    public int size ()
+    {
+        return _size;
+    }
+
+    /**
+     * Adds the given id to the list. Returns false if it was already present.
+     */
+    public boolean add (int id)
+    {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Ids must be positive: " + id);
+        }
+        if (id > _last) {
+            append(id);
+            return true;
+        }
+        if (id == _last) {
+            return false;
+        }
+
+        int[] ids = toArray();
+        int idx = Arrays.binarySearch(ids, id);
+        if (idx >= 0) {
+            return false;
+        }
+
+        // re-encode with the new id in place
+        idx = -idx - 1;
+        _length = _size = _last = 0;
+        for (int ii = 0; ii < ids.length; ++ii) {
+            if (ii == idx) {
+                append(id);
+            }
+            append(ids[ii]);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes all of the ids in the list, in ascending order.
+     */
+    public int[] toArray ()
+    {
+        int[] ids = new int[_size];
+        int pos = 0, id = 0;
+        for (int ii = 0; ii < _size; ++ii) {
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = _bytes[pos++];
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            ids[ii] = (id += delta);
+        }
+        return ids;
+    }
+
+    /**
+     * Writes the list to the given output.
+     */
+    public void write (DataOutput out)
+        throws IOException
+    {
+        out.writeInt(_size);
+        out.writeInt(_last);
+        out.writeInt(_length);
+        out.write(_bytes, 0, _length);
+    }
+
+    /**
+     * Reads a list previously written with {@link #write}. No more than the given number of bytes
+     * are allocated for the encoded ids, so that a corrupt length cannot exhaust memory.
+     * @throws IOException if the list is corrupt or its encoded ids are longer than allowed.
+     */
+    public static PostingList read (DataInput in, long maxLength)
+        throws IOException
+    {
+        PostingList list = new PostingList();
+        list._size = in.readInt();
+        list._last = in.readInt();
+        list._length = in.readInt();
+        if (list._size < 0 || list._last < 0 || list._length < list._size ||
+                list._length > MAX_ID_BYTES * (long)list._size || list._length > maxLength) {
+            throw new IOException("Corrupt posting list [size=" + list._size +
+                ", length=" + list._length + ", maxLength=" + maxLength + "]");
+        }
+        list._bytes = new byte[list._length];
+        in.readFully(list._bytes);
+        return list;
+    }
+
+    /**
+     * Returns the ids present in both of the given ascending arrays.
+     */
+    public static int[] intersect (int[] a, int[] b)
+    {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int ii = 0, jj = 0; ii < a.length && jj < b.length; ) {
+            if (a[ii] < b[jj]) {
+                ii++;
+            } else if (a[ii] > b[jj]) {
+                jj++;
+            } else {
+                result[count++] = a[ii];
+                ii++;
+                jj++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    protected void append (int id)
+    {
+        if (_length + MAX_ID_BYTES > _bytes.length) {
+            _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _length + MAX_ID_BYTES));
+        }
+        int delta = id - _last;
+        while ((delta & ~0x7F) != 0) {
+            _bytes[_length++] = (byte)((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        _bytes[_length++] = (byte)delta;
+        _last = id;
+        _size++;
+    }
+
+    /** The encoded deltas. */
+    protected byte[] _bytes;
+
+    /** The number of bytes of {@link #_bytes} in use. */
+    protected int _length;
+
+    /** The number of ids in the list. */
+    protected int _size;
+
+    /** The highest id in the list, or 0 if empty. */
+    protected int _last;
+
+    /** The most bytes that one encoded id takes. */
+    protected static final int MAX_ID_BYTES = 5;
+}
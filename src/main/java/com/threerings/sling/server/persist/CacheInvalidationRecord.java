@@ -0,0 +1,60 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.persist;
+
+import java.sql.Timestamp;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.*;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * An invalidation of a cache entry published by one webapp node for the others to pick up.
+ */
+@Entity
+public class CacheInvalidationRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<CacheInvalidationRecord> _R = CacheInvalidationRecord.class;
+    public static final ColumnExp<Integer> INVALIDATION_ID = colexp(_R, "invalidationId");
+    public static final ColumnExp<String> NODE = colexp(_R, "node");
+    public static final ColumnExp<String> CACHE = colexp(_R, "cache");
+    public static final ColumnExp<String> MESSAGE = colexp(_R, "message");
+    public static final ColumnExp<Timestamp> POSTED = colexp(_R, "posted");
+    // AUTO-GENERATED: FIELDS END
+
+    public static final int SCHEMA_VERSION = 1;
+
+    /** Orders the invalidations, in the order they were inserted. */
+    @Id @GeneratedValue(strategy=GenerationType.IDENTITY)
+    public int invalidationId;
+
+    /** The node that published the invalidation. */
+    public String node;
+
+    /** The name of the invalidated cache. */
+    public String cache;
+
+    /** Identifies what was invalidated in the cache, or null if all of it was. */
+    @Column(nullable=true)
+    public String message;
+
+    /** When the invalidation was published. */
+    @Index public Timestamp posted;
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link CacheInvalidationRecord}
+     * with the supplied key values.
+     */
+    public static Key<CacheInvalidationRecord> getKey (int invalidationId)
+    {
+        return newKey(_R, invalidationId);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(INVALIDATION_ID); }
+    // AUTO-GENERATED: METHODS END
+}
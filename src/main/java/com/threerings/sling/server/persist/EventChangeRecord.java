@@ -0,0 +1,52 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.persist;
+
+import java.sql.Timestamp;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.*;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * Records that an event was created or changed, so that every webapp node can tell its clients
+ * about changes made on any node.
+ */
+@Entity
+public class EventChangeRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<EventChangeRecord> _R = EventChangeRecord.class;
+    public static final ColumnExp<Integer> CHANGE_ID = colexp(_R, "changeId");
+    public static final ColumnExp<Integer> EVENT_ID = colexp(_R, "eventId");
+    public static final ColumnExp<Timestamp> CHANGED = colexp(_R, "changed");
+    // AUTO-GENERATED: FIELDS END
+
+    public static final int SCHEMA_VERSION = 1;
+
+    /** Orders the changes, in the order they were inserted. */
+    @Id @GeneratedValue(strategy=GenerationType.IDENTITY)
+    public int changeId;
+
+    /** The event that was changed. */
+    public int eventId;
+
+    /** When the event was changed. */
+    @Index public Timestamp changed;
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link EventChangeRecord}
+     * with the supplied key values.
+     */
+    public static Key<EventChangeRecord> getKey (int changeId)
+    {
+        return newKey(_R, changeId);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(CHANGE_ID); }
+    // AUTO-GENERATED: METHODS END
+}
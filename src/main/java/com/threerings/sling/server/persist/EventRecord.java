@@ -34,7 +34,12 @@ import com.threerings.sling.web.data.UserPetition;
     @Index(name="ixLowerSource"),
     @Index(name="ixLowerSourceHandle"),
     @Index(name="ixLowerTarget"),
-    @Index(name="ixLowerTargetHandle")})
+    @Index(name="ixLowerTargetHandle"),
+    @Index(name="ixEnteredEventId"),
+    @Index(name="ixLastUpdatedEventId")},
+    fullTextIndices={
+    @FullTextIndex(name=EventRecord.FTS_SUBJECT, fields={ "subject" }),
+    @FullTextIndex(name=EventRecord.FTS_CHAT_HISTORY, fields={ "chatHistory" })})
 public class EventRecord extends PersistentRecord
 {
     // AUTO-GENERATED: FIELDS START
@@ -59,11 +64,18 @@ public class EventRecord extends PersistentRecord
     public static final ColumnExp<String> CHAT_HISTORY = colexp(_R, "chatHistory");
     public static final ColumnExp<String> LINK = colexp(_R, "link");
     public static final ColumnExp<String> LANGUAGE = colexp(_R, "language");
+    public static final ColumnExp<Integer> VERSION = colexp(_R, "version");
     // AUTO-GENERATED: FIELDS END
 
     /** Increment this value if you make a change to this class that must be propagated to its
      * database representation. */
-    public static final int SCHEMA_VERSION = 9;
+    public static final int SCHEMA_VERSION = 13;
+
+    /** The identifier for the full text index on {@link #subject}. */
+    public static final String FTS_SUBJECT = "SUBJECT";
+
+    /** The identifier for the full text index on {@link #chatHistory}. */
+    public static final String FTS_CHAT_HISTORY = "CHAT_HISTORY";
 
     /** A unique identifier for this record. */
     @Id @GeneratedValue(strategy=GenerationType.IDENTITY)
@@ -74,7 +86,7 @@ public class EventRecord extends PersistentRecord
     public Type type;
 
     /** The time at which this event was entered into the system. */
-    public Timestamp entered;
+    @Index public Timestamp entered;
 
     /** The time at which this event was last updated. */
     public Timestamp lastUpdated;
@@ -145,6 +157,10 @@ public class EventRecord extends PersistentRecord
     @Column(nullable=true, length=2)
     public String language;
 
+    /** Incremented whenever the status, owner or waiting flag of this event changes, so that
+     * changes based on a stale copy of the event can be detected. */
+    public int version;
+
     /**
      * Support for our legacy records without conversion.
      */
@@ -175,33 +191,46 @@ public class EventRecord extends PersistentRecord
         return BYTE_TO_STATUS.get(status);
     }
 
+    /**
+     * Creates an event for display, including its chat history. The rest of the conversion is
+     * shared with {@link EventSummaryRecord#toEvent}.
+     */
     public Event toEvent (Map<String, AccountName> accounts)
     {
-        Event event = new Event();
-        event.eventId = eventId;
-        event.type = type;
-        event.entered = entered.getTime();
-        event.source = new Event.Participant(sourceHandle != null ?
-            new AccountName(source, sourceHandle) : accounts.get(source), sourceIpAddress,
-            sourceMachineIdent);
-        AccountName targetAccountName = targetHandle != null ?
-            new AccountName(target, targetHandle) : accounts.get(target);
-        if (targetAccountName != null) {
-            event.target = new Event.Participant(
-                targetAccountName, targetIpAddress, targetMachineIdent);
-        }
-        event.owner = accounts.get(owner);
-        event.status = BYTE_TO_STATUS.get(status);
-        event.waitingForPlayer = waitingForPlayer;
-        event.subject = subject;
+        Event event = toSummary().toEvent(accounts);
         event.chatHistory = chatHistory;
-        event.lastUpdated = lastUpdated.getTime();
-        event.firstResponse = firstResponse;
-        event.link = link;
-        event.language = language;
         return event;
     }
 
+    /**
+     * Returns the summary of this event, as would be loaded as an {@link EventSummaryRecord}.
+     */
+    public EventSummaryRecord toSummary ()
+    {
+        EventSummaryRecord summary = new EventSummaryRecord();
+        summary.eventId = eventId;
+        summary.type = type;
+        summary.entered = entered;
+        summary.lastUpdated = lastUpdated;
+        summary.firstResponse = firstResponse;
+        summary.source = source;
+        summary.sourceHandle = sourceHandle;
+        summary.sourceIpAddress = sourceIpAddress;
+        summary.sourceMachineIdent = sourceMachineIdent;
+        summary.target = target;
+        summary.targetHandle = targetHandle;
+        summary.targetIpAddress = targetIpAddress;
+        summary.targetMachineIdent = targetMachineIdent;
+        summary.owner = owner;
+        summary.status = status;
+        summary.waitingForPlayer = waitingForPlayer;
+        summary.subject = subject;
+        summary.link = link;
+        summary.language = language;
+        summary.version = version;
+        return summary;
+    }
+
     public UserPetition toUserPetition ()
     {
         if (target != null) {
@@ -271,6 +300,30 @@ public class EventRecord extends PersistentRecord
         return ix(EventRecord.TARGET_HANDLE);
     }
 
+    /**
+     * Defines the index on {@link #entered} and {@link #eventId}, which backs seeking to a page
+     * of events sorted by creation.
+     */
+    public static List<IndexDesc> ixEnteredEventId ()
+    {
+        return seekIx(EventRecord.ENTERED);
+    }
+
+    /**
+     * Defines the index on {@link #lastUpdated} and {@link #eventId}, which backs seeking to a
+     * page of events sorted by update.
+     */
+    public static List<IndexDesc> ixLastUpdatedEventId ()
+    {
+        return seekIx(EventRecord.LAST_UPDATED);
+    }
+
+    protected static List<IndexDesc> seekIx (ColumnExp<Timestamp> col)
+    {
+        return Lists.newArrayList(
+            new IndexDesc(col, Order.DESC), new IndexDesc(EventRecord.EVENT_ID, Order.DESC));
+    }
+
     protected static List<IndexDesc> ix (ColumnExp<String> col)
     {
         return Collections.singletonList(new IndexDesc(StringFuncs.lower(col), Order.ASC));
@@ -0,0 +1,135 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.persist;
+
+import java.sql.Timestamp;
+import java.util.Map;
+
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.Computed;
+import com.samskivert.depot.expression.ColumnExp;
+
+import com.threerings.sling.web.data.AccountName;
+import com.threerings.sling.web.data.Event;
+
+/**
+ * The columns of an {@link EventRecord} needed to show the event in a list. This leaves out the
+ * chat history, which can be very large and is only shown when viewing a single event.
+ */
+@Computed(shadowOf=EventRecord.class)
+public class EventSummaryRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<EventSummaryRecord> _R = EventSummaryRecord.class;
+    public static final ColumnExp<Integer> EVENT_ID = colexp(_R, "eventId");
+    public static final ColumnExp<Event.Type> TYPE = colexp(_R, "type");
+    public static final ColumnExp<Timestamp> ENTERED = colexp(_R, "entered");
+    public static final ColumnExp<Timestamp> LAST_UPDATED = colexp(_R, "lastUpdated");
+    public static final ColumnExp<Long> FIRST_RESPONSE = colexp(_R, "firstResponse");
+    public static final ColumnExp<String> SOURCE = colexp(_R, "source");
+    public static final ColumnExp<String> SOURCE_HANDLE = colexp(_R, "sourceHandle");
+    public static final ColumnExp<String> SOURCE_IP_ADDRESS = colexp(_R, "sourceIpAddress");
+    public static final ColumnExp<String> SOURCE_MACHINE_IDENT = colexp(_R, "sourceMachineIdent");
+    public static final ColumnExp<String> TARGET = colexp(_R, "target");
+    public static final ColumnExp<String> TARGET_HANDLE = colexp(_R, "targetHandle");
+    public static final ColumnExp<String> TARGET_IP_ADDRESS = colexp(_R, "targetIpAddress");
+    public static final ColumnExp<String> TARGET_MACHINE_IDENT = colexp(_R, "targetMachineIdent");
+    public static final ColumnExp<String> OWNER = colexp(_R, "owner");
+    public static final ColumnExp<Byte> STATUS = colexp(_R, "status");
+    public static final ColumnExp<Boolean> WAITING_FOR_PLAYER = colexp(_R, "waitingForPlayer");
+    public static final ColumnExp<String> SUBJECT = colexp(_R, "subject");
+    public static final ColumnExp<String> LINK = colexp(_R, "link");
+    public static final ColumnExp<String> LANGUAGE = colexp(_R, "language");
+    public static final ColumnExp<Integer> VERSION = colexp(_R, "version");
+    // AUTO-GENERATED: FIELDS END
+
+    /** See {@link EventRecord#eventId}. */
+    public int eventId;
+
+    /** See {@link EventRecord#type}. */
+    public Event.Type type;
+
+    /** See {@link EventRecord#entered}. */
+    public Timestamp entered;
+
+    /** See {@link EventRecord#lastUpdated}. */
+    public Timestamp lastUpdated;
+
+    /** See {@link EventRecord#firstResponse}. */
+    public Long firstResponse;
+
+    /** See {@link EventRecord#source}. */
+    public String source;
+
+    /** See {@link EventRecord#sourceHandle}. */
+    public String sourceHandle;
+
+    /** See {@link EventRecord#sourceIpAddress}. */
+    public String sourceIpAddress;
+
+    /** See {@link EventRecord#sourceMachineIdent}. */
+    public String sourceMachineIdent;
+
+    /** See {@link EventRecord#target}. */
+    public String target;
+
+    /** See {@link EventRecord#targetHandle}. */
+    public String targetHandle;
+
+    /** See {@link EventRecord#targetIpAddress}. */
+    public String targetIpAddress;
+
+    /** See {@link EventRecord#targetMachineIdent}. */
+    public String targetMachineIdent;
+
+    /** See {@link EventRecord#owner}. */
+    public String owner;
+
+    /** See {@link EventRecord#status}. */
+    public byte status;
+
+    /** See {@link EventRecord#waitingForPlayer}. */
+    public boolean waitingForPlayer;
+
+    /** See {@link EventRecord#subject}. */
+    public String subject;
+
+    /** See {@link EventRecord#link}. */
+    public String link;
+
+    /** See {@link EventRecord#language}. */
+    public String language;
+
+    /** See {@link EventRecord#version}. */
+    public int version;
+
+    /**
+     * Creates an event for display in a list. The chat history of the event is left null.
+     */
+    public Event toEvent (Map<String, AccountName> accounts)
+    {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.type = type;
+        event.entered = entered.getTime();
+        event.source = new Event.Participant(sourceHandle != null ?
+            new AccountName(source, sourceHandle) : accounts.get(source), sourceIpAddress,
+            sourceMachineIdent);
+        AccountName targetAccountName = targetHandle != null ?
+            new AccountName(target, targetHandle) : accounts.get(target);
+        if (targetAccountName != null) {
+            event.target = new Event.Participant(
+                targetAccountName, targetIpAddress, targetMachineIdent);
+        }
+        event.owner = accounts.get(owner);
+        event.status = EventRecord.BYTE_TO_STATUS.get(status);
+        event.waitingForPlayer = waitingForPlayer;
+        event.subject = subject;
+        event.lastUpdated = lastUpdated.getTime();
+        event.firstResponse = firstResponse;
+        event.link = link;
+        event.language = language;
+        return event;
+    }
+}
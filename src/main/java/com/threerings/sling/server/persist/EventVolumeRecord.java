@@ -0,0 +1,56 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.persist;
+
+import java.sql.Timestamp;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.Entity;
+import com.samskivert.depot.annotation.Id;
+import com.samskivert.depot.expression.ColumnExp;
+
+import com.threerings.sling.web.data.Event;
+
+/**
+ * Records the number of events of a given type entered during an hour. These are kept up to date
+ * as events are inserted so that volume reports do not need to scan the events themselves.
+ */
+@Entity
+public class EventVolumeRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<EventVolumeRecord> _R = EventVolumeRecord.class;
+    public static final ColumnExp<Timestamp> HOUR = colexp(_R, "hour");
+    public static final ColumnExp<Event.Type> TYPE = colexp(_R, "type");
+    public static final ColumnExp<Integer> EVENTS = colexp(_R, "events");
+    // AUTO-GENERATED: FIELDS END
+
+    /** Increment this value if you make a change to this class that must be propagated to its
+     * database representation. */
+    public static final int SCHEMA_VERSION = 1;
+
+    /** The start of the hour during which the events were entered. */
+    @Id public Timestamp hour;
+
+    /** The type of the events. */
+    @Id public Event.Type type;
+
+    /** The number of events entered. */
+    public int events;
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link EventVolumeRecord}
+     * with the supplied key values.
+     */
+    public static Key<EventVolumeRecord> getKey (Timestamp hour, Event.Type type)
+    {
+        return newKey(_R, hour, type);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(HOUR, TYPE); }
+    // AUTO-GENERATED: METHODS END
+}
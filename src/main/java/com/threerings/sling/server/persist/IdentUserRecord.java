@@ -0,0 +1,50 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.persist;
+
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.annotation.Computed;
+import com.samskivert.depot.expression.ColumnExp;
+
+import com.threerings.user.OOOUserCard;
+import com.threerings.user.depot.OOOUserRecord;
+import com.threerings.user.depot.UserIdentRecord;
+
+/**
+ * A machine ident joined with a user who has used it.
+ */
+@Computed
+public class IdentUserRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<IdentUserRecord> _R = IdentUserRecord.class;
+    public static final ColumnExp<String> MACH_IDENT = colexp(_R, "machIdent");
+    public static final ColumnExp<String> USERNAME = colexp(_R, "username");
+    public static final ColumnExp<Integer> FLAGS = colexp(_R, "flags");
+    // AUTO-GENERATED: FIELDS END
+
+    /** The machine ident. */
+    @Computed(shadowOf=UserIdentRecord.class)
+    public String machIdent;
+
+    /** The name of the user. */
+    @Computed(shadowOf=OOOUserRecord.class)
+    public String username;
+
+    /** The flags of the user. */
+    @Computed(shadowOf=OOOUserRecord.class)
+    public int flags;
+
+    /**
+     * Creates the card of the user. Only the username and flags are filled in; the other fields
+     * of the card are left at their defaults, so callers needing them must load the user.
+     */
+    public OOOUserCard toCard ()
+    {
+        OOOUserCard card = new OOOUserCard();
+        card.username = username;
+        card.flags = flags;
+        return card;
+    }
+}
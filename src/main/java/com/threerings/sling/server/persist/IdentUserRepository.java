@@ -0,0 +1,82 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.persist;
+
+import java.util.Collection;
+import java.util.Set;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.samskivert.depot.DepotRepository;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.clause.FromOverride;
+import com.samskivert.depot.clause.Join;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.Where;
+
+import com.threerings.user.OOOUserCard;
+import com.threerings.user.depot.DepotUserRepository;
+import com.threerings.user.depot.OOOUserRecord;
+import com.threerings.user.depot.UserIdentRecord;
+
+/**
+ * Loads the links between users and their machine idents in bulk. The user tables belong to the
+ * {@link DepotUserRepository}, which may use a different database from ours, so we query them
+ * through its persistence context.
+ */
+@Singleton
+public class IdentUserRepository extends DepotRepository
+{
+    @Inject public IdentUserRepository (DepotUserRepository userRepo)
+    {
+        super(userRepo.ctx());
+    }
+
+    /**
+     * Loads the users of each of the given machine idents, in one query. The cards only have
+     * the fields that {@link IdentUserRecord#toCard} fills in.
+     */
+    public Multimap<String, OOOUserCard> loadUsersOfMachIdents (Collection<String> machIdents)
+    {
+        Multimap<String, OOOUserCard> users = ArrayListMultimap.create();
+        if (machIdents.isEmpty()) {
+            return users;
+        }
+        for (IdentUserRecord rec : findAll(IdentUserRecord.class, CacheStrategy.NONE,
+                Lists.<QueryClause>newArrayList(new FromOverride(UserIdentRecord.class),
+                    new Join(UserIdentRecord.USER_ID, OOOUserRecord.USER_ID),
+                    new Where(UserIdentRecord.MACH_IDENT.in(machIdents))))) {
+            users.put(rec.machIdent, rec.toCard());
+        }
+        return users;
+    }
+
+    /**
+     * Loads the machine idents used by each of the given users, in one query.
+     */
+    public Multimap<String, String> loadMachIdentsOfUsers (Collection<String> usernames)
+    {
+        Multimap<String, String> idents = ArrayListMultimap.create();
+        if (usernames.isEmpty()) {
+            return idents;
+        }
+        for (IdentUserRecord rec : findAll(IdentUserRecord.class, CacheStrategy.NONE,
+                Lists.<QueryClause>newArrayList(new FromOverride(UserIdentRecord.class),
+                    new Join(UserIdentRecord.USER_ID, OOOUserRecord.USER_ID),
+                    new Where(OOOUserRecord.USERNAME.in(usernames))))) {
+            idents.put(rec.username, rec.machIdent);
+        }
+        return idents;
+    }
+
+    @Override // from DepotRepository
+    protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes)
+    {
+        // nothing doing, the tables we read are managed by the user repository
+    }
+}
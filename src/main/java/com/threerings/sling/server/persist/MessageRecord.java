@@ -12,6 +12,7 @@ import java.util.Map;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.annotation.Column;
 import com.samskivert.depot.annotation.Entity;
+import com.samskivert.depot.annotation.FullTextIndex;
 import com.samskivert.depot.annotation.Index;
 import com.samskivert.depot.expression.ColumnExp;
 
@@ -21,7 +22,8 @@ import com.threerings.sling.web.data.Message;
 /**
  * Represents a single message associated with a support event.
  */
-@Entity
+@Entity(fullTextIndices={
+    @FullTextIndex(name=MessageRecord.FTS_TEXT, fields={ "text" })})
 public class MessageRecord extends PersistentRecord
 {
     // AUTO-GENERATED: FIELDS START
@@ -35,13 +37,16 @@ public class MessageRecord extends PersistentRecord
 
     /** Increment this value if you make a change to this class that must be propagated to its
      * database representation. */
-    public static final int SCHEMA_VERSION = 3;
+    public static final int SCHEMA_VERSION = 5;
+
+    /** The identifier for the full text index on {@link #text}. */
+    public static final String FTS_TEXT = "TEXT";
 
     /** The event to which this message is associated. */
     @Index public int eventId;
 
     /** The time at which this message was recorded. */
-    public Timestamp entered;
+    @Index public Timestamp entered;
 
     /** The account of the author of this message. */
     public String author;
@@ -3,46 +3,74 @@
 
 package com.threerings.sling.server.persist;
 
+import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import com.samskivert.depot.CountRecord;
+import com.samskivert.depot.DataMigration;
 import com.samskivert.depot.DateFuncs;
 import com.samskivert.depot.DepotRepository;
+import com.samskivert.depot.DuplicateKeyException;
+import com.samskivert.depot.Exps;
 import com.samskivert.depot.Funcs;
+import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
 import com.samskivert.depot.Ops;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.StringFuncs;
+import com.samskivert.depot.Transaction;
 import com.samskivert.depot.clause.FromOverride;
-import com.samskivert.depot.clause.GroupBy;
-import com.samskivert.depot.clause.Join;
 import com.samskivert.depot.clause.Limit;
 import com.samskivert.depot.clause.OrderBy;
 import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.SelectClause;
 import com.samskivert.depot.clause.Where;
 import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.expression.FluentExp;
 import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.operator.Case;
+import com.samskivert.depot.operator.FullText;
+import com.samskivert.depot.util.Tuple2;
 import com.samskivert.depot.util.Tuple3;
+import com.samskivert.depot.util.Tuple4;
 
+import com.threerings.sling.server.index.EventIndex;
 import com.threerings.sling.web.data.Event;
 import com.threerings.sling.web.data.EventFilter;
 import com.threerings.sling.web.data.EventSearch;
 import com.threerings.sling.web.data.Message;
+import com.threerings.sling.web.data.PageCursor;
 import com.threerings.sling.web.data.TimeRange;
 
+import static com.threerings.sling.Log.log;
+
 /**
  * Manages various support persistent data.
  */
@@ -58,13 +86,251 @@ public class SlingRepository extends DepotRepository
         /** Counts the total number of results. */
         int count();
 
+        /** Counts the results, but stops at the given limit. Returns limit + 1 if there are more
+         * results than the limit. This is much cheaper than a full count of a large result. */
+        int count(int limit);
+
         /** Loads a page of results. */
         List<T> load(int offset, int count);
     }
 
+    /**
+     * A paged query that can also load a page by seeking to a position in the sort order. This
+     * costs the same regardless of how far into the results the page is, whereas loading by
+     * offset requires the database to skip over all preceding rows.
+     */
+    public interface SeekableQuery<T> extends PagedQuery<T>
+    {
+        /** Loads a page of results following the given position. */
+        List<T> loadAfter (PageCursor after, int count);
+
+        /** Returns the position immediately after the given result, which was found at the given
+         * offset minus one. */
+        PageCursor cursorAfter (T result, int offset);
+    }
+
+    /**
+     * Notified when events are created or changed through this repository. Changes made by other
+     * nodes can be found with {@link #loadEventChanges}.
+     */
+    public interface EventObserver
+    {
+        /** Called after the event with the given id has been inserted or updated. */
+        void eventChanged (int eventId);
+    }
+
+    /**
+     * Thrown to roll back a transaction that finds a record has changed since it was loaded.
+     */
+    protected static class ConflictException extends RuntimeException
+    {
+        @Override public Throwable fillInStackTrace ()
+        {
+            return this; // only used for control flow
+        }
+    }
+
+    /**
+     * The changes to make to an event when a message is posted to it. See {@link #applyMessage}.
+     */
+    public static class MessageEffects
+    {
+        /** Whether to update the event's last updated time. */
+        public boolean touchEvent;
+
+        /** The new value of the event's waiting for player flag, or null to leave it alone. */
+        public Boolean waitingForPlayer;
+
+        /** Whether the message counts as a response to the event. If so, and the event has not
+         * been responded to yet, its first response time is set. */
+        public boolean firstResponse;
+
+        /** The new status of the event, or null to leave it alone. */
+        public Event.Status status;
+
+        /** The new owner of the event, if the status is being changed. */
+        public String owner;
+    }
+
+    /**
+     * Statistics of the first response times of a set of events. The database counts the events
+     * into buckets delimited by a set of ascending bounds, so that only one row per bucket is
+     * read however many events there are. Counts within a bound are exact; percentiles are
+     * interpolated between the fastest and slowest response in their bucket.
+     */
+    public static class ResponseTimes
+    {
+        /**
+         * Creates empty response times for the given ascending bucket bounds.
+         */
+        public ResponseTimes (long[] bounds)
+        {
+            _bounds = bounds;
+            _counts = new int[bounds.length + 2];
+            _min = new long[bounds.length + 1];
+            _max = new long[bounds.length + 1];
+        }
+
+        /**
+         * Adds the events in a bucket. Bucket i holds responses later than bounds[i-1] but within
+         * bounds[i], bucket bounds.length those later than the last bound, and bucket
+         * bounds.length + 1 the events with no response, for which min and max are ignored.
+         */
+        public void add (int bucket, int count, long min, long max)
+        {
+            _counts[bucket] += count;
+            if (bucket <= _bounds.length) {
+                _min[bucket] = min;
+                _max[bucket] = max;
+            }
+        }
+
+        /**
+         * Returns the total number of events.
+         */
+        public int total ()
+        {
+            int total = 0;
+            for (int count : _counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * Returns the number of events that were first responded to within the given number of
+         * milliseconds, which must be one of the bucket bounds.
+         */
+        public int countWithin (long millis)
+        {
+            int bound = indexOf(millis), count = 0;
+            for (int ii = 0; ii <= bound; ii++) {
+                count += _counts[ii];
+            }
+            return count;
+        }
+
+        /**
+         * Returns the number of events that have not been responded to.
+         */
+        public int countUnanswered ()
+        {
+            return _counts[_bounds.length + 1];
+        }
+
+        /**
+         * Returns the first response time within which the given percentage of events were
+         * responded to, or -1 if that many events have not been responded to.
+         */
+        public long percentile (int percent)
+        {
+            int total = total();
+            if (total == 0) {
+                return -1;
+            }
+            int rank = Math.max(1, (int)Math.ceil(percent * total / 100.0));
+            for (int ii = 0, before = 0; ii <= _bounds.length; before += _counts[ii++]) {
+                int count = _counts[ii];
+                if (rank <= before + count) {
+                    return (count == 1) ? _max[ii] :
+                        _min[ii] + (_max[ii] - _min[ii]) * (rank - before - 1) / (count - 1);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the number of events whose first response fell into each of the buckets
+         * delimited by the given ascending bounds, which must all be among the bucket bounds.
+         * Element i counts responses later than bounds[i-1] but within bounds[i]. The last two
+         * elements count responses later than the final bound and events with no response.
+         */
+        public int[] histogram (long[] bounds)
+        {
+            int[] counts = new int[bounds.length + 2];
+            int bucket = 0;
+            for (int ii = 0; ii <= _bounds.length; ii++) {
+                while (bucket < bounds.length && ii > indexOf(bounds[bucket])) {
+                    bucket++;
+                }
+                counts[bucket] += _counts[ii];
+            }
+            counts[bounds.length + 1] = countUnanswered();
+            return counts;
+        }
+
+        protected int indexOf (long bound)
+        {
+            int idx = Arrays.binarySearch(_bounds, bound);
+            if (idx < 0) {
+                throw new IllegalArgumentException("Not a bucket bound: " + bound);
+            }
+            return idx;
+        }
+
+        protected long[] _bounds;
+        protected int[] _counts;
+        protected long[] _min, _max;
+    }
+
     @Inject public SlingRepository (PersistenceContext ctx)
     {
         super(ctx);
+
+        // volumes are only counted as events are inserted, so count the events that are already
+        // there when we first start up; only hours that are over are counted, since other
+        // servers may still be inserting into the current one. In a rolling deploy, servers
+        // still running older code do not count their events, so the hours from the upgrade on
+        // must be repaired with backfillEventVolumes once they are over and every server has
+        // been upgraded; stopping all servers for the upgrade avoids this
+        registerMigration(new DataMigration("2026_10_18_backfillEventVolumes") {
+            @Override public void invoke () {
+                backfillEventVolumes(startOfHour(System.currentTimeMillis()).getTime());
+            }
+        });
+    }
+
+    /**
+     * Sets the index used to search the text of events. The index is optional; without it,
+     * searches use the database's full text indexes. A background thread brings the index up to
+     * date with the database, rebuilding it entirely if it could not be loaded, and then keeps
+     * feeding it whatever was stored since, including by other servers.
+     */
+    @Inject(optional=true) public void setEventIndex (EventIndex index)
+    {
+        _index = index;
+        _indexUpdater = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "EventIndexUpdater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _indexUpdater.scheduleWithFixedDelay(new Runnable() {
+            public void run () {
+                try {
+                    syncEventIndex();
+                } catch (Exception e) {
+                    log.warning("Failed to update event index", e);
+                }
+            }
+        }, 0, INDEX_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops updating the event index, if any, and closes it.
+     */
+    public void shutdown ()
+    {
+        if (_index == null) {
+            return;
+        }
+        _indexUpdater.shutdownNow();
+        try {
+            _index.close();
+        } catch (IOException ioe) {
+            log.warning("Failed to close event index", ioe);
+        }
     }
 
     /**
@@ -75,26 +341,43 @@ public class SlingRepository extends DepotRepository
         return load(EventRecord.getKey(eventId));
     }
 
+    /**
+     * Returns whether an event with the given id exists, without loading it.
+     */
+    public boolean eventExists (int eventId)
+    {
+        return from(EventRecord.class).where(EventRecord.EVENT_ID.eq(eventId)).selectCount() > 0;
+    }
+
+    /**
+     * Loads the summaries of the events with the given ids, in no particular order.
+     */
+    public List<EventSummaryRecord> loadEventSummaries (Collection<Integer> eventIds)
+    {
+        return findAll(EventSummaryRecord.class, CacheStrategy.NONE,
+            Lists.<QueryClause>newArrayList(new Where(EventRecord.EVENT_ID.in(eventIds))));
+    }
+
     /**
      * Loads currently open support records that are alo not waiting for a player response.
      */
-    public PagedQuery<EventRecord> loadOpenEvents ()
+    public PagedQuery<EventSummaryRecord> loadOpenEvents ()
     {
-        return new BasicEventQuery(new Where(Ops.and(STATUS_OPEN, NOT_WAITING)));
+        return new BasicEventQuery(Ops.and(STATUS_OPEN, NOT_WAITING));
     }
 
     /**
      * Loads support records that were claimed by the given owner.
      */
-    public PagedQuery<EventRecord> loadClaimedEvents (String owner)
+    public PagedQuery<EventSummaryRecord> loadClaimedEvents (String owner)
     {
-        return new BasicEventQuery(new Where(lowerEq(EventRecord.OWNER, owner)));
+        return new BasicEventQuery(lowerEq(EventRecord.OWNER, owner));
     }
 
     /**
      * Loads a page of support records.
      */
-    public PagedQuery<EventRecord> loadAllEvents ()
+    public PagedQuery<EventSummaryRecord> loadAllEvents ()
     {
         return new BasicEventQuery();
     }
@@ -102,21 +385,22 @@ public class SlingRepository extends DepotRepository
     /**
      * Loads support events matching the supplied account as source or target.
      */
-    public PagedQuery<EventRecord> loadEvents (String account)
+    public PagedQuery<EventSummaryRecord> loadEvents (String account)
     {
-        return new BasicEventQuery(new Where(Ops.or(
+        return new BasicEventQuery(Ops.or(
             lowerEq(EventRecord.SOURCE, account),
-            lowerEq(EventRecord.TARGET, account)))).sort(EventRecord.LAST_UPDATED);
+            lowerEq(EventRecord.TARGET, account))).sort(EventRecord.LAST_UPDATED);
     }
 
     /**
      * Loads a paged query of events matching a structured set of conditions.
      */
-    public PagedQuery<EventRecord> searchEvents (EventSearch search)
+    public PagedQuery<EventSummaryRecord> searchEvents (EventSearch search)
     {
-        boolean joinMessages = false;
+        boolean hasNote = false;
 
         List<SQLExpression<?>> primaries = Lists.newArrayList();
+        List<SQLExpression<?>> notes = Lists.newArrayList();
         for (EventFilter filter : search.filters) {
             switch (filter.type) {
             case OWNER_IS:
@@ -125,10 +409,14 @@ public class SlingRepository extends DepotRepository
             case OWNER_ID_IS:
                 throw new IllegalArgumentException(); // caller has to convert these
             case CHAT_HISTORY_MATCHES:
-                primaries.add(termSearch(EventRecord.CHAT_HISTORY, filter.getSearchTerms()));
+                textSearch(EventIndex.Field.CHAT_HISTORY, EventRecord.EVENT_ID,
+                    EventRecord.ENTERED, EventRecord.CHAT_HISTORY, EventRecord.class,
+                    EventRecord.FTS_CHAT_HISTORY, filter.getSearchTerms(), primaries);
                 break;
             case SUBJECT_MATCHES:
-                primaries.add(termSearch(EventRecord.SUBJECT, filter.getSearchTerms()));
+                textSearch(EventIndex.Field.SUBJECT, EventRecord.EVENT_ID, EventRecord.ENTERED,
+                    EventRecord.SUBJECT, EventRecord.class, EventRecord.FTS_SUBJECT,
+                    filter.getSearchTerms(), primaries);
                 break;
             case ACCOUNT_NAME_IS:
                 primaries.add(Ops.or(
@@ -141,8 +429,9 @@ public class SlingRepository extends DepotRepository
                     lowerEq(EventRecord.TARGET_HANDLE, filter.getGameName())));
                 break;
             case NOTE_MATCHES:
-                primaries.add(termSearch(MessageRecord.TEXT, filter.getSearchTerms()));
-                joinMessages = true;
+                textSearch(EventIndex.Field.NOTE, MessageRecord.EVENT_ID, MessageRecord.ENTERED,
+                    MessageRecord.TEXT, MessageRecord.class, MessageRecord.FTS_TEXT,
+                    filter.getSearchTerms(), notes);
                 break;
             case FIRST_RESPONSE_IS_MORE_THAN:
                 primaries.add(Ops.or(
@@ -150,7 +439,7 @@ public class SlingRepository extends DepotRepository
                     EventRecord.FIRST_RESPONSE.greaterThan(filter.getMillis())));
                 break;
             case HAS_NOTE:
-                joinMessages = true;
+                hasNote = true;
                 break;
             case CREATED_BETWEEN:
             case UPDATED_BETWEEN:
@@ -195,9 +484,14 @@ public class SlingRepository extends DepotRepository
             }
         }
 
-        Where where = new Where(Ops.and(primaries));
-        BasicEventQuery query = joinMessages ?
-            new EventJoinMessagesQuery(where) : new BasicEventQuery(where);
+        if (hasNote || !notes.isEmpty()) {
+            // test for matching messages with a semi-join, so each event is only found once
+            notes.add(0, MessageRecord.EVENT_ID.eq(EventRecord.EVENT_ID));
+            primaries.add(Ops.exists(new SelectClause(MessageRecord.class,
+                new SQLExpression<?>[] { MessageRecord.EVENT_ID }, new Where(Ops.and(notes)))));
+        }
+
+        BasicEventQuery query = new BasicEventQuery(Ops.and(primaries));
 
         switch (search.sort) {
         case CREATION:
@@ -212,7 +506,8 @@ public class SlingRepository extends DepotRepository
 
     /**
      * Returns a 7x24 array of all events entered during each hour on each day of the week, limited
-     * to events reported in the given time range.
+     * to events reported in the given time range. The volumes are read from the hourly
+     * {@link EventVolumeRecord}s, so both ends of the range must fall on the hour.
      */
     public int[][] getVolumeByDayAndHour (
         long from, long to, Collection<Event.Type> types)
@@ -222,21 +517,144 @@ public class SlingRepository extends DepotRepository
             volumes[ii] = new int[24];
         }
 
-        SQLExpression<Number> dayOfWeek = DateFuncs.dayOfWeek(EventRecord.ENTERED);
-        SQLExpression<Number> hour = DateFuncs.hour(EventRecord.ENTERED);
+        SQLExpression<Number> dayOfWeek = DateFuncs.dayOfWeek(EventVolumeRecord.HOUR);
+        SQLExpression<Number> hour = DateFuncs.hour(EventVolumeRecord.HOUR);
         Where where = new Where(Ops.and(
-            EventRecord.ENTERED.greaterEq(new Timestamp(from)),
-            EventRecord.ENTERED.lessThan(new Timestamp(to)),
-            EventRecord.TYPE.in(types)));
+            EventVolumeRecord.HOUR.greaterEq(new Timestamp(from)),
+            EventVolumeRecord.HOUR.lessThan(new Timestamp(to)),
+            EventVolumeRecord.TYPE.in(types)));
 
-        for (Tuple3<Number, Number, Number> tup : from(EventRecord.class).where(where)
-            .groupBy(dayOfWeek, hour).select(dayOfWeek, hour, Funcs.countStar())) {
+        for (Tuple3<Number, Number, Number> tup : from(EventVolumeRecord.class).where(where)
+            .groupBy(dayOfWeek, hour).select(dayOfWeek, hour,
+                Funcs.sum(EventVolumeRecord.EVENTS))) {
             volumes[tup.a.intValue()][tup.b.intValue()] += tup.c.intValue();
         }
 
         return volumes;
     }
 
+    /**
+     * Returns the number of events of the given types entered during each of a series of
+     * consecutive intervals. The volumes are read from the hourly {@link EventVolumeRecord}s and
+     * tallied into the intervals, so every boundary must fall on the hour. Any time zone with
+     * whole hour offsets may be used to compute the boundaries.
+     * @param bounds the interval boundaries in ascending order; the result has one element fewer
+     */
+    public int[] getVolumeByInterval (long[] bounds, Collection<Event.Type> types)
+    {
+        int[] volumes = new int[Math.max(bounds.length - 1, 0)];
+        if (volumes.length == 0) {
+            return volumes;
+        }
+
+        Where where = new Where(Ops.and(
+            EventVolumeRecord.HOUR.greaterEq(new Timestamp(bounds[0])),
+            EventVolumeRecord.HOUR.lessThan(new Timestamp(bounds[bounds.length - 1])),
+            EventVolumeRecord.TYPE.in(types)));
+
+        for (Tuple2<Timestamp, Number> tup : from(EventVolumeRecord.class).where(where)
+            .groupBy(EventVolumeRecord.HOUR).select(EventVolumeRecord.HOUR,
+                Funcs.sum(EventVolumeRecord.EVENTS))) {
+            int idx = Arrays.binarySearch(bounds, tup.a.getTime());
+            idx = (idx >= 0) ? idx : -idx - 2; // the interval starting at or before the hour
+            if (idx >= 0 && idx < volumes.length) {
+                volumes[idx] += tup.b.intValue();
+            }
+        }
+
+        return volumes;
+    }
+
+    /**
+     * Recomputes the hourly event volumes for the given range from the events themselves. This is
+     * used to backfill volumes for events that predate {@link EventVolumeRecord}, or to repair
+     * them. The range is processed a day at a time and both ends must fall on the hour. Events
+     * inserted into an hour while it is being rebuilt may be missed, so this should be run over
+     * hours that are already past.
+     */
+    public void rebuildEventVolumes (long from, long to)
+    {
+        for (long start = from; start < to; start += REBUILD_VOLUME_CHUNK) {
+            Timestamp tstart = new Timestamp(start);
+            Timestamp tend = new Timestamp(Math.min(start + REBUILD_VOLUME_CHUNK, to));
+            deleteAll(EventVolumeRecord.class, new Where(Ops.and(
+                EventVolumeRecord.HOUR.greaterEq(tstart),
+                EventVolumeRecord.HOUR.lessThan(tend))));
+
+            // events are counted into hours here rather than grouped by the database's day and
+            // hour, which would merge the repeated hour when the clocks go back
+            Where where = new Where(Ops.and(
+                EventRecord.ENTERED.greaterEq(tstart),
+                EventRecord.ENTERED.lessThan(tend)));
+            Table<Timestamp, Event.Type, Integer> volumes = HashBasedTable.create();
+            for (Tuple2<Timestamp, Event.Type> tup : from(EventRecord.class).where(where)
+                    .select(EventRecord.ENTERED, EventRecord.TYPE)) {
+                if (tup.b == null) {
+                    continue; // legacy events are not included in volume reports
+                }
+                Timestamp hour = startOfHour(tup.a.getTime());
+                Integer events = volumes.get(hour, tup.b);
+                volumes.put(hour, tup.b, (events == null) ? 1 : events + 1);
+            }
+            for (Table.Cell<Timestamp, Event.Type, Integer> cell : volumes.cellSet()) {
+                EventVolumeRecord rec = new EventVolumeRecord();
+                rec.hour = cell.getRowKey();
+                rec.type = cell.getColumnKey();
+                rec.events = cell.getValue();
+                store(rec);
+            }
+        }
+    }
+
+    /**
+     * Computes the first response statistics of the events of the given type entered in the given
+     * time range. The events are counted into buckets by the database, which are delimited by the
+     * given bounds as well as a set of our own for estimating percentiles, so the statistics are
+     * read in a single grouped query returning one row per bucket.
+     */
+    public ResponseTimes getResponseTimes (Event.Type type, TimeRange range, long... bounds)
+    {
+        Set<Long> merged = Sets.newTreeSet(Longs.asList(PERCENTILE_BOUNDS));
+        merged.addAll(Longs.asList(bounds));
+        long[] all = Longs.toArray(merged);
+
+        // bounds are written into the query as literals so that the bucket expression is the
+        // same text in the select and group by clauses
+        List<SQLExpression<?>> cases = Lists.newArrayList();
+        cases.add(EventRecord.FIRST_RESPONSE.isNull());
+        cases.add(Exps.literal(String.valueOf(all.length + 1)));
+        for (int ii = 0; ii < all.length; ii++) {
+            cases.add(EventRecord.FIRST_RESPONSE.lessEq(Exps.literal(String.valueOf(all[ii]))));
+            cases.add(Exps.literal(String.valueOf(ii)));
+        }
+        cases.add(Exps.literal(String.valueOf(all.length)));
+        Case<Number> bucket = new Case<Number>(cases.toArray(new SQLExpression<?>[cases.size()]));
+
+        Where where = new Where(Ops.and(
+            EventRecord.ENTERED.greaterEq(new Timestamp(range.from)),
+            EventRecord.ENTERED.lessThan(new Timestamp(range.to)),
+            EventRecord.TYPE.eq(type)));
+        ResponseTimes times = new ResponseTimes(all);
+        for (Tuple4<Number, Number, Long, Long> tup : from(EventRecord.class).where(where)
+                .groupBy(bucket).select(bucket, Funcs.countStar(),
+                    Funcs.min(EventRecord.FIRST_RESPONSE), Funcs.max(EventRecord.FIRST_RESPONSE))) {
+            times.add(tup.a.intValue(), tup.b.intValue(),
+                (tup.c == null) ? 0 : tup.c, (tup.d == null) ? 0 : tup.d);
+        }
+        return times;
+    }
+
+    /**
+     * Rebuilds the hourly event volumes for all events entered before the current hour. This is
+     * done automatically the first time the repository is initialized, by a data migration, and
+     * may be run again to repair the volumes, for example for the hours of a rolling deploy
+     * during which some servers did not yet count their events.
+     */
+    public void backfillEventVolumes ()
+    {
+        backfillEventVolumes(startOfHour(System.currentTimeMillis()).getTime());
+    }
+
     /**
      * Loads all petition events matching the supplied source account.
      */
@@ -284,25 +702,147 @@ public class SlingRepository extends DepotRepository
         record.entered = new Timestamp(System.currentTimeMillis());
         record.lastUpdated = record.entered;
         insert(record);
+        noteEventVolume(record);
+        if (_index != null) {
+            long time = record.entered.getTime();
+            _index.add(record.eventId, time, EventIndex.Field.SUBJECT, record.subject);
+            _index.add(record.eventId, time, EventIndex.Field.CHAT_HISTORY, record.chatHistory);
+        }
+        noteEventChanged(record.eventId);
     }
 
     /**
-     * Updates the specified fields of the supplied event record.
+     * Updates the status and owner of an event, provided it has not changed since it was loaded
+     * with the given version. Returns false, leaving the event alone, if it has.
      */
-    public void updateEvent (int eventId, Event.Status newStatus, String newOwner)
+    public boolean updateEvent (int eventId, int version, Event.Status newStatus, String newOwner)
     {
-        updatePartial(EventRecord.getKey(eventId),
-            EventRecord.STATUS, newStatus.byteValue,
-            EventRecord.OWNER, newOwner);
+        Map<ColumnExp<?>, SQLExpression<?>> updates = Maps.newHashMap();
+        updates.put(EventRecord.STATUS, Exps.value(newStatus.byteValue));
+        updates.put(EventRecord.OWNER, Exps.value(newOwner));
+        return updateIfUnchanged(eventId, version, updates);
     }
 
     /**
-     * Sets whether the event with the given id is waiting for a player response.
+     * Sets an event in progress with the given owner, with a single conditional update. Returns
+     * false, leaving the event alone, if it does not exist or is already in progress with a
+     * different owner; {@link #eventExists} tells the two apart.
      */
-    public void setWaitingForPlayer (int eventId, boolean waiting)
+    public boolean claimEvent (int eventId, String owner)
     {
-        updatePartial(EventRecord.getKey(eventId),
-            EventRecord.WAITING_FOR_PLAYER, waiting);
+        Key<EventRecord> key = EventRecord.getKey(eventId);
+        Where where = new Where(Ops.and(EventRecord.EVENT_ID.eq(eventId), claimableBy(owner)));
+        boolean claimed = updatePartial(EventRecord.class, where, key, ImmutableMap.of(
+            EventRecord.STATUS, Exps.value(Event.Status.IN_PROGRESS.byteValue),
+            EventRecord.OWNER, Exps.value(owner),
+            EventRecord.VERSION, EventRecord.VERSION.plus(1))) > 0;
+        if (claimed) {
+            noteEventChanged(eventId);
+        }
+        return claimed;
+    }
+
+    /**
+     * Sets the status of the given events, records the given messages and sets the first
+     * response of the given events, all in one transaction, provided none of the events has
+     * changed since it was loaded with the given version. If the owner is to be changed, it is
+     * also set for all of the events, and events being claimed must also not be in progress with
+     * another owner. If any event fails these checks, nothing is changed. The {@link
+     * MessageRecord#entered} field of the messages will be filled in by this method.
+     *
+     * @param versions maps the id of each event to update to the version it was loaded with.
+     * @param responded maps the id of each event whose first response this change is to the
+     * time the event was entered. Events that already have a first response keep it.
+     * @return the ids of the events that failed the checks, empty if the changes were made.
+     */
+    public Set<Integer> updateEvents (final Map<Integer, Integer> versions,
+        final Event.Status newStatus, boolean changeOwner, String newOwner,
+        final Collection<MessageRecord> messages, Map<Integer, Timestamp> responded)
+    {
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        final Map<ColumnExp<?>, SQLExpression<?>> updates = Maps.newHashMap();
+        updates.put(EventRecord.STATUS, Exps.value(newStatus.byteValue));
+        if (changeOwner) {
+            updates.put(EventRecord.OWNER, Exps.value(newOwner));
+        }
+        updates.put(EventRecord.VERSION, EventRecord.VERSION.plus(1));
+        if (!responded.isEmpty()) {
+            // each event has its own response time; those not listed are left as they are
+            List<SQLExpression<?>> cases = Lists.newArrayList();
+            for (Map.Entry<Integer, Timestamp> entry : responded.entrySet()) {
+                cases.add(EventRecord.EVENT_ID.eq(entry.getKey()));
+                cases.add(Exps.value(now.getTime() - entry.getValue().getTime()));
+            }
+            updates.put(EventRecord.FIRST_RESPONSE, Funcs.coalesce(EventRecord.FIRST_RESPONSE,
+                new Case<Long>(cases.toArray(new SQLExpression<?>[cases.size()]))));
+        }
+
+        // update every event that is unchanged with one statement
+        final KeySet<EventRecord> keys = KeySet.newSimpleKeySet(EventRecord.class,
+            versions.keySet());
+        List<SQLExpression<?>> unchanged = Lists.newArrayList();
+        for (Map.Entry<Integer, Integer> entry : versions.entrySet()) {
+            unchanged.add(Ops.and(EventRecord.EVENT_ID.eq(entry.getKey()),
+                EventRecord.VERSION.eq(entry.getValue())));
+        }
+        List<SQLExpression<?>> conds = Lists.newArrayList();
+        conds.add(EventRecord.EVENT_ID.in(versions.keySet()));
+        conds.add(Ops.or(unchanged));
+        if (changeOwner && newOwner != null && newStatus == Event.Status.IN_PROGRESS) {
+            conds.add(claimableBy(newOwner));
+        }
+        final Where where = new Where(Ops.and(conds));
+
+        final Set<Integer> skipped = Sets.newHashSet();
+        try {
+            Transaction.perform(_ctx, new Runnable() {
+                public void run () {
+                    if (updatePartial(EventRecord.class, where, keys, updates) <
+                            versions.size()) {
+                        // the updated events are now one version on, and the others are not
+                        skipped.addAll(versions.keySet());
+                        for (Tuple2<Integer, Integer> tup : from(EventRecord.class).where(keys)
+                                .select(EventRecord.EVENT_ID, EventRecord.VERSION)) {
+                            if (tup.b == versions.get(tup.a) + 1) {
+                                skipped.remove(tup.a);
+                            }
+                        }
+                        throw CONFLICT; // roll back the events that were updated
+                    }
+                    for (int eventId : versions.keySet()) {
+                        recordEventChange(eventId);
+                    }
+                    for (MessageRecord record : messages) {
+                        record.entered = now;
+                        insert(record);
+                    }
+                }
+            });
+        } catch (ConflictException ce) {
+            return skipped;
+        }
+
+        for (MessageRecord record : messages) {
+            if (_index != null) {
+                _index.add(record.eventId, now.getTime(), EventIndex.Field.NOTE, record.text);
+            }
+        }
+        for (int eventId : versions.keySet()) {
+            notifyEventObservers(eventId);
+        }
+        return skipped;
+    }
+
+    /**
+     * Sets whether the event with the given id is waiting for a player response, provided it has
+     * not changed since it was loaded with the given version. Returns false, leaving the event
+     * alone, if it has.
+     */
+    public boolean setWaitingForPlayer (int eventId, int version, boolean waiting)
+    {
+        Map<ColumnExp<?>, SQLExpression<?>> updates = Maps.newHashMap();
+        updates.put(EventRecord.WAITING_FOR_PLAYER, Exps.value(waiting));
+        return updateIfUnchanged(eventId, version, updates);
     }
 
     /**
@@ -311,6 +851,7 @@ public class SlingRepository extends DepotRepository
     public void setLanguage (int eventId, String language)
     {
         updatePartial(EventRecord.getKey(eventId), EventRecord.LANGUAGE, language);
+        noteEventChanged(eventId);
     }
 
     /**
@@ -322,11 +863,78 @@ public class SlingRepository extends DepotRepository
     {
         record.entered = new Timestamp(System.currentTimeMillis());
         insert(record);
+        if (_index != null) {
+            _index.add(record.eventId, record.entered.getTime(), EventIndex.Field.NOTE,
+                record.text);
+        }
         if (touchEvent) {
             // update the last modified time of the associated event
             updatePartial(EventRecord.getKey(record.eventId),
                           ImmutableMap.of(EventRecord.LAST_UPDATED, DateFuncs.now()));
+            noteEventChanged(record.eventId);
+        }
+    }
+
+    /**
+     * Records the supplied message and applies all of the given changes to its event with a
+     * single update, in one transaction, provided the event has not changed since it was loaded.
+     * Returns false, recording nothing, if it has. The {@link MessageRecord#entered} field will
+     * be filled in by this method. The first response time is only written if the event does not
+     * already have one, so concurrent replies cannot overwrite each other's.
+     */
+    public boolean applyMessage (
+        final MessageRecord record, final EventRecord event, MessageEffects effects)
+    {
+        record.entered = new Timestamp(System.currentTimeMillis());
+        final Map<ColumnExp<?>, SQLExpression<?>> updates = Maps.newHashMap();
+        if (effects.touchEvent) {
+            updates.put(EventRecord.LAST_UPDATED, Exps.value(record.entered));
+        }
+        if (effects.waitingForPlayer != null) {
+            updates.put(EventRecord.WAITING_FOR_PLAYER,
+                Exps.value(effects.waitingForPlayer));
+        }
+        if (effects.firstResponse && event.firstResponse == null) {
+            long response = record.entered.getTime() - event.entered.getTime();
+            updates.put(EventRecord.FIRST_RESPONSE, Funcs.coalesce(
+                EventRecord.FIRST_RESPONSE, Exps.value(response)));
+        }
+        if (effects.status != null) {
+            updates.put(EventRecord.STATUS, Exps.value(effects.status.byteValue));
+            updates.put(EventRecord.OWNER, Exps.value(effects.owner));
+        }
+        if (effects.status != null || effects.waitingForPlayer != null) {
+            updates.put(EventRecord.VERSION, EventRecord.VERSION.plus(1));
+        }
+
+        try {
+            Transaction.perform(_ctx, new Runnable() {
+                public void run () {
+                    insert(record);
+                    if (updates.isEmpty()) {
+                        return;
+                    }
+                    Where where = new Where(Ops.and(EventRecord.EVENT_ID.eq(event.eventId),
+                        EventRecord.VERSION.eq(event.version)));
+                    if (updatePartial(EventRecord.class, where,
+                            EventRecord.getKey(event.eventId), updates) == 0) {
+                        throw CONFLICT; // roll back the message
+                    }
+                    recordEventChange(event.eventId);
+                }
+            });
+        } catch (ConflictException ce) {
+            return false;
         }
+
+        if (_index != null) {
+            _index.add(record.eventId, record.entered.getTime(), EventIndex.Field.NOTE,
+                record.text);
+        }
+        if (!updates.isEmpty()) {
+            notifyEventObservers(event.eventId);
+        }
+        return true;
     }
 
     /**
@@ -400,17 +1008,52 @@ public class SlingRepository extends DepotRepository
     }
 
     /**
-     * Inserts or updates the {@link AgentActivityRecord} corresponding to the given account name
-     * to the current time. Returns the time inserted.
+     * Inserts or updates the {@link AgentActivityRecord} for each of the given account names to
+     * the given time, unless the record already has a later time, as it may if another node
+     * noted more recent activity first. All of the records are written in one transaction.
      */
-    public long noteAgentActivity (String accountName)
+    public void noteAgentActivity (final Map<String, Long> activity)
     {
-        AgentActivityRecord rec = new AgentActivityRecord();
-        rec.accountName = accountName;
-        long now = System.currentTimeMillis();
-        rec.time = new Timestamp(now);
-        store(rec);
-        return now;
+        if (activity.isEmpty()) {
+            return;
+        }
+
+        // each agent has its own time; a record only ever moves forwards
+        List<SQLExpression<?>> cases = Lists.newArrayList();
+        for (Map.Entry<String, Long> entry : activity.entrySet()) {
+            cases.add(AgentActivityRecord.ACCOUNT_NAME.eq(entry.getKey()));
+            cases.add(Exps.value(new Timestamp(entry.getValue())));
+        }
+        final Map<ColumnExp<?>, SQLExpression<?>> updates = ImmutableMap.<ColumnExp<?>,
+            SQLExpression<?>>of(AgentActivityRecord.TIME, Funcs.greatest(AgentActivityRecord.TIME,
+                new Case<Timestamp>(cases.toArray(new SQLExpression<?>[cases.size()]))));
+        final KeySet<AgentActivityRecord> keys = KeySet.newSimpleKeySet(
+            AgentActivityRecord.class, activity.keySet());
+
+        // update the existing records with one statement, then insert those that are missing
+        Runnable flush = new Runnable() {
+            public void run () {
+                if (updatePartial(AgentActivityRecord.class, keys, keys, updates) ==
+                        activity.size()) {
+                    return;
+                }
+                Set<String> missing = Sets.newHashSet(activity.keySet());
+                missing.removeAll(from(AgentActivityRecord.class).where(keys)
+                    .select(AgentActivityRecord.ACCOUNT_NAME));
+                for (String accountName : missing) {
+                    AgentActivityRecord rec = new AgentActivityRecord();
+                    rec.accountName = accountName;
+                    rec.time = new Timestamp(activity.get(accountName));
+                    insert(rec);
+                }
+            }
+        };
+        try {
+            Transaction.perform(_ctx, flush);
+        } catch (DuplicateKeyException dke) {
+            // another node noted one of the new agents first, so the update now finds it
+            Transaction.perform(_ctx, flush);
+        }
     }
 
     /**
@@ -428,6 +1071,140 @@ public class SlingRepository extends DepotRepository
         insertEvent(event);
     }
 
+    /**
+     * Adds an observer to be notified of event changes. Observers are called on the thread making
+     * the change, so they must be quick and must not throw.
+     */
+    public void addEventObserver (EventObserver observer)
+    {
+        _observers.add(observer);
+    }
+
+    /**
+     * Adds all events and notes entered at or after the given time to the event index again.
+     * This covers anything stored in the database just before the server last stopped that did
+     * not make it into the index. Events and notes that the previous call already added are
+     * skipped, since successive syncs overlap.
+     */
+    public void updateEventIndex (long since)
+    {
+        Timestamp start = new Timestamp(since);
+        Set<Integer> indexedEvents = Sets.newHashSet();
+        for (EventRecord event : findAll(EventRecord.class, CacheStrategy.NONE,
+                Lists.<QueryClause>newArrayList(new Where(EventRecord.ENTERED.greaterEq(start))))) {
+            indexedEvents.add(event.eventId);
+            if (_indexedEvents.contains(event.eventId)) {
+                continue;
+            }
+            long time = event.entered.getTime();
+            _index.add(event.eventId, time, EventIndex.Field.SUBJECT, event.subject);
+            _index.add(event.eventId, time, EventIndex.Field.CHAT_HISTORY, event.chatHistory);
+        }
+        Set<List<Object>> indexedMessages = Sets.newHashSet();
+        for (MessageRecord message : findAll(MessageRecord.class, CacheStrategy.NONE,
+                Lists.<QueryClause>newArrayList(
+                    new Where(MessageRecord.ENTERED.greaterEq(start))))) {
+            // notes have no ids of their own; two with the same key would index the same words
+            List<Object> key = Arrays.<Object>asList(
+                message.eventId, message.entered.getTime(), message.author, message.text);
+            indexedMessages.add(key);
+            if (_indexedMessages.contains(key)) {
+                continue;
+            }
+            _index.add(message.eventId, message.entered.getTime(), EventIndex.Field.NOTE,
+                message.text);
+        }
+        _indexedEvents = indexedEvents;
+        _indexedMessages = indexedMessages;
+    }
+
+    /**
+     * Rebuilds the event index from scratch, reading all events and notes in batches. Searches
+     * use the database's full text indexes until the rebuild is complete.
+     */
+    public void rebuildEventIndex ()
+        throws IOException
+    {
+        log.info("Rebuilding event index");
+        _indexedEvents = Collections.emptySet();
+        _indexedMessages = Collections.emptySet();
+        _index.startRebuild();
+        try {
+            int lastEventId = 0;
+            List<EventRecord> events;
+            do {
+                events = findAll(EventRecord.class, CacheStrategy.NONE,
+                    Lists.<QueryClause>newArrayList(
+                        new Where(EventRecord.EVENT_ID.greaterThan(lastEventId)),
+                        OrderBy.ascending(EventRecord.EVENT_ID), new Limit(0, INDEX_BATCH)));
+                for (EventRecord event : events) {
+                    long time = event.entered.getTime();
+                    _index.addRebuilt(event.eventId, time, EventIndex.Field.SUBJECT,
+                        event.subject);
+                    _index.addRebuilt(event.eventId, time, EventIndex.Field.CHAT_HISTORY,
+                        event.chatHistory);
+                    lastEventId = event.eventId;
+                }
+            } while (events.size() == INDEX_BATCH);
+
+            // notes have no ids of their own, so read them for a range of events at a time
+            for (int start = 0; start < lastEventId; start += INDEX_BATCH) {
+                for (MessageRecord message : findAll(MessageRecord.class, CacheStrategy.NONE,
+                        Lists.<QueryClause>newArrayList(new Where(Ops.and(
+                            MessageRecord.EVENT_ID.greaterThan(start),
+                            MessageRecord.EVENT_ID.lessEq(start + INDEX_BATCH)))))) {
+                    _index.addRebuilt(message.eventId, message.entered.getTime(),
+                        EventIndex.Field.NOTE, message.text);
+                }
+            }
+
+            _index.finishRebuild();
+            log.info("Event index rebuilt", "events", lastEventId);
+
+        } catch (IOException ioe) {
+            _index.abortRebuild();
+            throw ioe;
+        } catch (RuntimeException re) {
+            _index.abortRebuild();
+            throw re;
+        }
+    }
+
+    /**
+     * Adds everything stored since the event index was last synced to it, or rebuilds it if it
+     * is not ready. Searches then trust the index for what was entered a little before the sync
+     * started, allowing for transactions that commit late and for servers whose clocks differ.
+     */
+    protected void syncEventIndex ()
+        throws IOException
+    {
+        long start = System.currentTimeMillis();
+        if (!_index.isReady()) {
+            rebuildEventIndex();
+        } else if (_indexSyncedTo == 0) {
+            updateEventIndex(_index.getWatermark() - INDEX_CATCH_UP);
+        } else {
+            updateEventIndex(_indexSyncedTo);
+        }
+        _indexSyncedTo = start - INDEX_SYNC_OVERLAP;
+        _indexSyncTime = start;
+    }
+
+    /**
+     * Returns the time before which everything entered is in the event index, or 0 if the index
+     * should not be used, because there is none, it is not ready or it has not been synced with
+     * the database recently.
+     */
+    protected long getIndexSyncedTo ()
+    {
+        long syncedTo = _indexSyncedTo;
+        if (_index == null || !_index.isReady() ||
+                System.currentTimeMillis() - _indexSyncTime > MAX_INDEX_LAG) {
+            return 0;
+        }
+        return syncedTo;
+    }
+
     /**
      * Gets a map of all agent activity time stamps.
      */
@@ -440,6 +1217,161 @@ public class SlingRepository extends DepotRepository
         return activity;
     }
 
+    /**
+     * Gets a map of the agent activity time stamps later than the given time.
+     */
+    public HashMap<String, Long> getAgentActivity (long since)
+    {
+        HashMap<String, Long> activity = Maps.newHashMap();
+        for (AgentActivityRecord rec : findAll(AgentActivityRecord.class, CacheStrategy.NONE,
+                Lists.<QueryClause>newArrayList(new Where(
+                    AgentActivityRecord.TIME.greaterThan(new Timestamp(since)))))) {
+            activity.put(rec.accountName, rec.time.getTime());
+        }
+        return activity;
+    }
+
+    /**
+     * Publishes an invalidation of the given cache for other nodes to pick up.
+     * @param message identifies what was invalidated, or null if the whole cache was
+     */
+    public void publishInvalidation (String node, String cache, String message)
+    {
+        CacheInvalidationRecord rec = new CacheInvalidationRecord();
+        rec.node = node;
+        rec.cache = cache;
+        rec.message = message;
+        rec.posted = new Timestamp(System.currentTimeMillis());
+        insert(rec);
+    }
+
+    /**
+     * Loads up to the given number of the cache invalidations with ids greater than the given one,
+     * in id order.
+     */
+    public List<CacheInvalidationRecord> loadInvalidations (int afterId, int limit)
+    {
+        return findAll(CacheInvalidationRecord.class, CacheStrategy.NONE,
+            Lists.<QueryClause>newArrayList(
+                new Where(CacheInvalidationRecord.INVALIDATION_ID.greaterThan(afterId)),
+                OrderBy.ascending(CacheInvalidationRecord.INVALIDATION_ID),
+                new Limit(0, limit)));
+    }
+
+    /**
+     * Returns the id of the most recent cache invalidation, or 0 if there are none.
+     */
+    public int getLastInvalidationId ()
+    {
+        List<CacheInvalidationRecord> last = findAll(CacheInvalidationRecord.class,
+            CacheStrategy.NONE, Lists.<QueryClause>newArrayList(
+                OrderBy.descending(CacheInvalidationRecord.INVALIDATION_ID), new Limit(0, 1)));
+        return last.isEmpty() ? 0 : last.get(0).invalidationId;
+    }
+
+    /**
+     * Deletes the cache invalidations published before the given time.
+     */
+    public void purgeInvalidations (long before)
+    {
+        deleteAll(CacheInvalidationRecord.class,
+            new Where(CacheInvalidationRecord.POSTED.lessThan(new Timestamp(before))));
+    }
+
+    /**
+     * Loads up to the given number of the event changes with ids greater than the given one, in
+     * id order.
+     */
+    public List<EventChangeRecord> loadEventChanges (int afterId, int limit)
+    {
+        return findAll(EventChangeRecord.class, CacheStrategy.NONE,
+            Lists.<QueryClause>newArrayList(
+                new Where(EventChangeRecord.CHANGE_ID.greaterThan(afterId)),
+                OrderBy.ascending(EventChangeRecord.CHANGE_ID), new Limit(0, limit)));
+    }
+
+    /**
+     * Returns the id of the most recent event change, or 0 if there are none.
+     */
+    public int getLastEventChangeId ()
+    {
+        List<EventChangeRecord> last = findAll(EventChangeRecord.class,
+            CacheStrategy.NONE, Lists.<QueryClause>newArrayList(
+                OrderBy.descending(EventChangeRecord.CHANGE_ID), new Limit(0, 1)));
+        return last.isEmpty() ? 0 : last.get(0).changeId;
+    }
+
+    /**
+     * Deletes the event changes made before the given time.
+     */
+    public void purgeEventChanges (long before)
+    {
+        deleteAll(EventChangeRecord.class,
+            new Where(EventChangeRecord.CHANGED.lessThan(new Timestamp(before))));
+    }
+
+    /**
+     * Applies the given updates to an event and increments its version, provided its version is
+     * still the given one. Returns false if it is not.
+     */
+    protected boolean updateIfUnchanged (
+        int eventId, int version, Map<ColumnExp<?>, SQLExpression<?>> updates)
+    {
+        updates.put(EventRecord.VERSION, EventRecord.VERSION.plus(1));
+        Key<EventRecord> key = EventRecord.getKey(eventId);
+        Where where = new Where(Ops.and(
+            EventRecord.EVENT_ID.eq(eventId), EventRecord.VERSION.eq(version)));
+        if (updatePartial(EventRecord.class, where, key, updates) == 0) {
+            return false;
+        }
+        noteEventChanged(eventId);
+        return true;
+    }
+
+    /**
+     * Records a change to an event for all nodes to see and notifies our observers.
+     */
+    protected void noteEventChanged (int eventId)
+    {
+        recordEventChange(eventId);
+        notifyEventObservers(eventId);
+    }
+
+    /**
+     * Records a change to an event for all nodes to see. Changes made in a transaction should be
+     * recorded in it, so that they are seen exactly when they are committed.
+     */
+    protected void recordEventChange (int eventId)
+    {
+        EventChangeRecord change = new EventChangeRecord();
+        change.eventId = eventId;
+        change.changed = new Timestamp(System.currentTimeMillis());
+        insert(change);
+    }
+
+    /**
+     * Notifies our observers of a change to an event. Changes made in a transaction should only
+     * be notified once it has been committed.
+     */
+    protected void notifyEventObservers (int eventId)
+    {
+        for (EventObserver observer : _observers) {
+            observer.eventChanged(eventId);
+        }
+    }
+
+    /**
+     * Returns a condition matching the events that can be claimed by the given owner, that is
+     * those that are not already in progress with another owner.
+     */
+    protected static SQLExpression<?> claimableBy (String owner)
+    {
+        return Ops.or(
+            EventRecord.STATUS.notEq(Event.Status.IN_PROGRESS.byteValue),
+            EventRecord.OWNER.isNull(),
+            EventRecord.OWNER.eq(owner));
+    }
+
     @Override // from DepotRepository
     protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes)
     {
@@ -448,6 +1380,65 @@ public class SlingRepository extends DepotRepository
         classes.add(EventRecord.class);
         classes.add(QuestionRecord.class);
         classes.add(AgentActivityRecord.class);
+        classes.add(EventVolumeRecord.class);
+        classes.add(CacheInvalidationRecord.class);
+        classes.add(EventChangeRecord.class);
+    }
+
+    /**
+     * Rebuilds the hourly event volumes for all events entered before the given hour.
+     */
+    protected void backfillEventVolumes (long to)
+    {
+        List<EventRecord> first = findAll(EventRecord.class,
+            OrderBy.ascending(EventRecord.ENTERED), new Limit(0, 1));
+        if (!first.isEmpty()) {
+            rebuildEventVolumes(startOfHour(first.get(0).entered.getTime()).getTime(), to);
+        }
+    }
+
+    /**
+     * Adds the supplied newly inserted event to the volume for the hour in which it was entered.
+     */
+    protected void noteEventVolume (EventRecord record)
+    {
+        if (record.type == null) {
+            return; // legacy events are not included in volume reports
+        }
+
+        Timestamp hour = startOfHour(record.entered.getTime());
+        Key<EventVolumeRecord> key = EventVolumeRecord.getKey(hour, record.type);
+        if (incrementEventVolume(key) == 0) {
+            EventVolumeRecord rec = new EventVolumeRecord();
+            rec.hour = hour;
+            rec.type = record.type;
+            rec.events = 1;
+            try {
+                insert(rec);
+            } catch (DuplicateKeyException dke) {
+                // someone else started this hour first
+                incrementEventVolume(key);
+            }
+        }
+    }
+
+    protected int incrementEventVolume (Key<EventVolumeRecord> key)
+    {
+        return updatePartial(key, ImmutableMap.of(
+            EventVolumeRecord.EVENTS, EventVolumeRecord.EVENTS.plus(1)));
+    }
+
+    /**
+     * Returns the start of the hour containing the given time.
+     */
+    protected static Timestamp startOfHour (long time)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return new Timestamp(cal.getTimeInMillis());
     }
 
     protected static SQLExpression<?> looseMatch (FluentExp<String> exp, String term)
@@ -481,6 +1472,97 @@ public class SlingRepository extends DepotRepository
         return Ops.and(exps);
     }
 
+    /**
+     * Adds to the given list an expression matching records whose text contains all of the terms
+     * in the given query. Plain words must match whole words rather than any part of the text.
+     * If the event index is ready and synced, the words are looked up there and only records
+     * entered since the index was synced are checked with the given full text index. Otherwise,
+     * or if the index finds too many events to pass to the database, the full text index is used
+     * throughout. Quoted phrases, terms with wildcards and short words are also checked with a
+     * substring match.
+     */
+    protected void textSearch (EventIndex.Field field, ColumnExp<Integer> eventId,
+        ColumnExp<Timestamp> entered, FluentExp<String> exp,
+        Class<? extends PersistentRecord> pclass, String ftsIndex, String query,
+        List<SQLExpression<?>> exps)
+    {
+        TextQuery text = TextQuery.parse(query);
+        SQLExpression<?> match = text.toExpression(exp, pclass, ftsIndex);
+        long syncedTo = getIndexSyncedTo();
+        if (!text.words.isEmpty() && syncedTo > 0) {
+            int[] found = _index.lookup(field, text.words);
+            if (found.length <= MAX_INDEX_CANDIDATES) {
+                // event ids start at 1, so this matches nothing when nothing was found
+                List<SQLExpression<?>> indexed = Lists.newArrayList();
+                indexed.add(found.length == 0 ? eventId.eq(0) : eventId.in(Ints.asList(found)));
+                for (String term : text.residual) {
+                    indexed.add(looseMatch(exp, term));
+                }
+                exps.add(Ops.or(Ops.and(indexed),
+                    Ops.and(entered.greaterEq(new Timestamp(syncedTo)), match)));
+                return;
+            }
+        }
+        exps.add(match);
+    }
+
+    /**
+     * A text search query, split into the words that can be looked up in an index and the terms
+     * that must be checked with a substring match.
+     */
+    protected static class TextQuery
+    {
+        /** The indexable words that must all appear, in lower case. */
+        public List<String> words = Lists.newArrayList();
+
+        /** The terms that must each match some part of the text. */
+        public List<String> residual = Lists.newArrayList();
+
+        public static TextQuery parse (String query)
+        {
+            TextQuery text = new TextQuery();
+            for (String term : Splitter.split(query)) {
+                if (term.indexOf('*') >= 0) {
+                    text.residual.add(term);
+                    continue;
+                }
+
+                boolean indexedOnly = term.charAt(0) != '"';
+                for (String word : term.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+                    if (word.length() >= MIN_FULL_TEXT_WORD) {
+                        text.words.add(word);
+                    }
+                    indexedOnly &= word.equalsIgnoreCase(term) &&
+                        word.length() >= MIN_FULL_TEXT_WORD;
+                }
+                if (!indexedOnly) {
+                    text.residual.add(term);
+                }
+            }
+            return text;
+        }
+
+        /**
+         * Creates an expression for the whole query using the given full text index. The words
+         * must all match, as they do in the event index, rather than any one of them.
+         */
+        public SQLExpression<?> toExpression (
+            FluentExp<String> exp, Class<? extends PersistentRecord> pclass, String ftsIndex)
+        {
+            List<SQLExpression<?>> exps = Lists.newArrayList();
+            if (!words.isEmpty()) {
+                exps.add(new FullText(pclass, ftsIndex, Joiner.on(' ').join(words), true).match());
+            }
+            for (String term : residual) {
+                exps.add(looseMatch(exp, term));
+            }
+            if (exps.size() == 1) {
+                return exps.get(0);
+            }
+            return Ops.and(exps);
+        }
+    }
+
     protected static class Splitter
     {
         public StringBuilder buff = new StringBuilder();
@@ -534,18 +1616,18 @@ public class SlingRepository extends DepotRepository
         }
     }
 
-    protected class BasicEventQuery implements PagedQuery<EventRecord>
+    protected class BasicEventQuery implements SeekableQuery<EventSummaryRecord>
     {
         BasicEventQuery ()
         {
         }
 
-        BasicEventQuery (Where where)
+        BasicEventQuery (SQLExpression<?> where)
         {
-            _clauses.add(where);
+            _where = where;
         }
 
-        BasicEventQuery sort (ColumnExp<?> exp)
+        BasicEventQuery sort (ColumnExp<Timestamp> exp)
         {
             _sort = exp;
             return this;
@@ -553,50 +1635,66 @@ public class SlingRepository extends DepotRepository
 
         @Override public int count ()
         {
-            QueryClause[] aclauses = _clauses.toArray(new QueryClause[_clauses.size() + 1]);
-            aclauses[aclauses.length - 1] = new FromOverride(EventRecord.class);
-            return SlingRepository.this.load(CountRecord.class, aclauses).count;
+            List<QueryClause> clauses = Lists.newArrayList();
+            addWhere(clauses, null);
+            clauses.add(new FromOverride(EventRecord.class));
+            return SlingRepository.this.load(CountRecord.class,
+                clauses.toArray(new QueryClause[clauses.size()])).count;
         }
 
-        @Override public List<EventRecord> load (int offset, int count)
+        @Override public int count (int limit)
         {
-            List<QueryClause> clauses = Lists.newArrayList(_clauses);
-            clauses.add(OrderBy.descending(_sort));
-            clauses.add(new Limit(offset, count));
-            return findAll(EventRecord.class, _cache, clauses);
+            List<QueryClause> clauses = Lists.newArrayList();
+            addWhere(clauses, null);
+            clauses.add(new Limit(0, limit + 1));
+            return findAllKeys(EventRecord.class, false,
+                clauses.toArray(new QueryClause[clauses.size()])).size();
         }
 
-        protected List<QueryClause> _clauses = Lists.newArrayList();
-        protected ColumnExp<?> _sort = EventRecord.ENTERED;
-        protected CacheStrategy _cache = CacheStrategy.BEST;
-    }
-
-    protected class EventJoinMessagesQuery extends BasicEventQuery
-    {
-        public EventJoinMessagesQuery (Where where)
+        @Override public List<EventSummaryRecord> load (int offset, int count)
         {
-            super(where);
+            List<QueryClause> clauses = Lists.newArrayList();
+            addWhere(clauses, null);
+            clauses.add(OrderBy.descending(_sort).thenDescending(EventRecord.EVENT_ID));
+            clauses.add(new Limit(offset, count));
+            return findAll(EventSummaryRecord.class, CacheStrategy.NONE, clauses);
+        }
 
-            _clauses.add(new Join(MessageRecord.class,
-                EventRecord.EVENT_ID.eq(MessageRecord.EVENT_ID)));
+        @Override public List<EventSummaryRecord> loadAfter (PageCursor after, int count)
+        {
+            // rows are in descending (sort, eventId) order, so the next page starts with the
+            // first row that sorts strictly below the cursor; this is backed by the
+            // (sort, eventId) indexes on EventRecord
+            Timestamp sortValue = new Timestamp(after.sortValue);
+            sortValue.setNanos(after.sortNanos);
+            List<QueryClause> clauses = Lists.newArrayList();
+            addWhere(clauses, Ops.or(
+                _sort.lessThan(sortValue),
+                Ops.and(_sort.eq(sortValue), EventRecord.EVENT_ID.lessThan(after.eventId))));
+            clauses.add(OrderBy.descending(_sort).thenDescending(EventRecord.EVENT_ID));
+            clauses.add(new Limit(0, count));
+            return findAll(EventSummaryRecord.class, CacheStrategy.NONE, clauses);
+        }
 
-            // TODO: support select distinct foo.id in depot, use that instead of GroupBy
-            _clauses.add(new GroupBy(_ctx.getMarshaller(EventRecord.class).getSelections()));
-            _cache = CacheStrategy.CONTENTS; // group by can't handle key caching
+        @Override public PageCursor cursorAfter (EventSummaryRecord result, int offset)
+        {
+            Timestamp sortValue = (_sort == EventRecord.LAST_UPDATED) ?
+                result.lastUpdated : result.entered;
+            return new PageCursor(
+                offset, sortValue.getTime(), sortValue.getNanos(), result.eventId);
         }
 
-        @Override public int count ()
+        protected void addWhere (List<QueryClause> clauses, SQLExpression<?> seek)
         {
-            // TODO: support select count(distinct "foo".id) in depot and rejig so a regular
-            // load call can be used
-            List<QueryClause> clauses = Lists.newArrayList(_clauses);
-            clauses.add(new FromOverride(EventRecord.class));
-            int count = 0;
-            for (CountRecord rec : findAll(CountRecord.class, clauses)) {
-                count += rec.count;
+            if (_where != null && seek != null) {
+                clauses.add(new Where(Ops.and(_where, seek)));
+            } else if (_where != null || seek != null) {
+                clauses.add(new Where(_where != null ? _where : seek));
             }
-            return count;
         }
+
+        protected SQLExpression<?> _where;
+        protected ColumnExp<Timestamp> _sort = EventRecord.ENTERED;
     }
 
     protected FluentExp<Boolean> lowerEq (FluentExp<String> col, String value)
@@ -605,13 +1703,72 @@ public class SlingRepository extends DepotRepository
         return StringFuncs.lower(col).eq(value);
     }
 
+    /** The index of event text, if one has been provided. */
+    protected EventIndex _index;
+
+    /** Keeps {@link #_index} up to date with the database, if there is an index. */
+    protected ScheduledExecutorService _indexUpdater;
+
+    /** Everything entered before this time is in {@link #_index}, or 0 before the first sync. */
+    protected volatile long _indexSyncedTo;
+
+    /** When {@link #_index} was last synced with the database. */
+    protected volatile long _indexSyncTime;
+
+    /** The events and notes added to {@link #_index} by the last update, keyed as in
+     * {@link #updateEventIndex}. Only used by the updater thread. */
+    protected Set<Integer> _indexedEvents = Collections.emptySet();
+    protected Set<List<Object>> _indexedMessages = Collections.emptySet();
+
+    /** Observers of event changes. */
+    protected List<EventObserver> _observers = new CopyOnWriteArrayList<EventObserver>();
+
     protected static final SQLExpression<Boolean> STATUS_OPEN = Ops.not(Ops.or(
         EventRecord.STATUS.eq(Event.Status.PLAYER_CLOSED.byteValue),
         EventRecord.STATUS.eq(Event.Status.RESOLVED_CLOSED.byteValue),
         EventRecord.STATUS.eq(Event.Status.IGNORED_CLOSED.byteValue)));
     protected static final SQLExpression<Boolean> NOT_WAITING =
         EventRecord.WAITING_FOR_PLAYER.eq(false);
+
+    /** Rolls back a transaction that finds an event has changed since it was loaded. */
+    protected static final ConflictException CONFLICT = new ConflictException();
     protected static final Map<EventFilter.Type, ColumnExp<Timestamp>> DATE_COLS = ImmutableMap.of(
         EventFilter.Type.CREATED_BETWEEN, EventRecord.ENTERED,
         EventFilter.Type.UPDATED_BETWEEN, EventRecord.LAST_UPDATED);
+
+    /** The length of the shortest word we expect the database to put in a full text index. */
+    protected static final int MIN_FULL_TEXT_WORD = 4;
+
+    /** The bucket bounds used to estimate first response percentiles, in addition to those
+     * requested. Each bucket is at most about twice as wide as the one before it. */
+    protected static final long[] PERCENTILE_BOUNDS = {
+        60 * 1000L, 2 * 60 * 1000L, 5 * 60 * 1000L, 10 * 60 * 1000L, 15 * 60 * 1000L,
+        30 * 60 * 1000L, 45 * 60 * 1000L, 60 * 60 * 1000L, 90 * 60 * 1000L, 2 * 60 * 60 * 1000L,
+        3 * 60 * 60 * 1000L, 4 * 60 * 60 * 1000L, 6 * 60 * 60 * 1000L, 8 * 60 * 60 * 1000L,
+        12 * 60 * 60 * 1000L, 16 * 60 * 60 * 1000L, 24 * 60 * 60 * 1000L, 36 * 60 * 60 * 1000L,
+        2 * 24 * 60 * 60 * 1000L, 3 * 24 * 60 * 60 * 1000L, 5 * 24 * 60 * 60 * 1000L,
+        7 * 24 * 60 * 60 * 1000L, 10 * 24 * 60 * 60 * 1000L, 14 * 24 * 60 * 60 * 1000L,
+        30 * 24 * 60 * 60 * 1000L };
+
+    /** The span of events whose volumes are rebuilt at a time. */
+    protected static final long REBUILD_VOLUME_CHUNK = 24 * 60 * 60 * 1000L;
+
+    /** The most event ids found by the event index that we will pass to the database. */
+    protected static final int MAX_INDEX_CANDIDATES = 1000;
+
+    /** The number of events read at a time when rebuilding the event index. */
+    protected static final int INDEX_BATCH = 1000;
+
+    /** How far before the event index's watermark we look for text it may have missed. */
+    protected static final long INDEX_CATCH_UP = 10 * 60 * 1000L;
+
+    /** How often the event index is fed what was stored since the last time. */
+    protected static final long INDEX_SYNC_INTERVAL = 5 * 1000L;
+
+    /** How far before the start of a sync we look again for text entered on other servers, to
+     * allow for late commits and clock differences. */
+    protected static final long INDEX_SYNC_OVERLAP = 60 * 1000L;
+
+    /** How long the event index may go without a sync before searches stop using it. */
+    protected static final long MAX_INDEX_LAG = 60 * 1000L;
 }
@@ -20,6 +20,7 @@ import com.threerings.sling.web.data.Category;
 import com.threerings.sling.web.data.Event;
 import com.threerings.sling.web.data.EventSearch;
 import com.threerings.sling.web.data.MachineIdentity;
+import com.threerings.sling.web.data.RelatedAccountGraph;
 import com.threerings.sling.web.data.Message;
 import com.threerings.sling.web.data.Question;
 import com.threerings.sling.web.data.TimeRange;
@@ -129,14 +130,44 @@ public interface SlingService extends RemoteService
         public String sendError;
     }
 
+    /**
+     * Result for {@link #pollEvents}.
+     */
+    public static class EventUpdates implements IsSerializable
+    {
+        /** The position in the stream of changes following these changes. */
+        public long seq;
+
+        /** Indicates that some changes since the requested position are no longer available and
+         * the caller should reload its events. */
+        public boolean reset;
+
+        /** The current state of each event changed since the requested position. */
+        public List<Event> events;
+    }
+
     /**
      * Total number and events in a time range and the number with a qualifying response time.
      */
     public static class EventResponses
         implements IsSerializable
     {
+        /** The upper bounds of the first response time buckets in {@link #histogram}. */
+        public static final long[] HISTOGRAM_BOUNDS = {
+            15 * 60 * 1000L, 60 * 60 * 1000L, 4 * 60 * 60 * 1000L, 12 * 60 * 60 * 1000L,
+            24 * 60 * 60 * 1000L, 3 * 24 * 60 * 60 * 1000L, 7 * 24 * 60 * 60 * 1000L };
+
         public int total;
         public int qualified;
+
+        /** The number of events first responded to within each of {@link #HISTOGRAM_BOUNDS} but
+         * not the previous one. The final two elements hold the number of events responded to
+         * after the last bound and the number not responded to at all. */
+        public int[] histogram;
+
+        /** The first response times within which 50, 90 and 99 percent of events were responded
+         * to, or -1 if that many events have not been responded to. */
+        public long p50, p90, p99;
     }
 
     public enum TimeUnit
@@ -244,6 +275,14 @@ public interface SlingService extends RemoteService
     public List<MachineIdentity> getRelatedAccounts (int accountId)
         throws SlingException;
 
+    /**
+     * Returns the machine identifiers connected to the specified account through chains of
+     * accounts that share them, up to the given number of hops, with all the accounts that have
+     * used them. Admin only.
+     */
+    public RelatedAccountGraph getRelatedAccountGraph (int accountId, int maxHops)
+        throws SlingException;
+
     /**
      * Updates the email address, password or both for the supplied account. If either is null it
      * will not be updated. Admin only.
@@ -318,6 +357,14 @@ public interface SlingService extends RemoteService
         PagedRequest request)
         throws SlingException;
 
+    /**
+     * Waits for events to be created or changed after the given position in the stream of
+     * changes, and returns their current state. Returns no events if nothing changes within a
+     * short time. Pass zero to get the current position without waiting. Admin only.
+     */
+    public EventUpdates pollEvents (long since)
+        throws SlingException;
+
     /**
      * Loads up an event by id. Admin only.
      */
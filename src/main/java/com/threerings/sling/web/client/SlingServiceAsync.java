@@ -26,6 +26,7 @@ import com.threerings.sling.web.data.Category;
 import com.threerings.sling.web.data.Event;
 import com.threerings.sling.web.data.EventSearch;
 import com.threerings.sling.web.data.MachineIdentity;
+import com.threerings.sling.web.data.RelatedAccountGraph;
 import com.threerings.sling.web.data.Message;
 import com.threerings.sling.web.data.Question;
 import com.threerings.sling.web.data.TimeRange;
@@ -80,6 +81,12 @@ public interface SlingServiceAsync
     public void getRelatedAccounts (
         int accountId, AsyncCallback<List<MachineIdentity>> callback);
 
+    /**
+     * The asynchronous version of {@link SlingService#getRelatedAccountGraph}.
+     */
+    public void getRelatedAccountGraph (
+        int accountId, int maxHops, AsyncCallback<RelatedAccountGraph> callback);
+
     /**
      * The asynchronous version of {@link SlingService#updateAccount}.
      */
@@ -148,6 +155,12 @@ public interface SlingServiceAsync
         EventSearch search, PagedRequest request,
         AsyncCallback<PagedResult<Event>> callback);
 
+    /**
+     * The asynchronous version of {@link SlingService#pollEvents}.
+     */
+    public void pollEvents (
+        long since, AsyncCallback<SlingService.EventUpdates> callback);
+
     /**
      * The asynchronous version of {@link SlingService#loadEvents}.
      */
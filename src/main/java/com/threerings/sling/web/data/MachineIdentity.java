@@ -43,4 +43,8 @@ public class MachineIdentity
 
     /** The accounts that have logged in with this machine identifier. */
     public List<AccountInfo> accounts;
+
+    /** How many machine identifiers away this one is from the account whose relations were
+     * requested, counting this one. The account's own machine identifiers are 1 away. */
+    public int hops = 1;
 }
@@ -0,0 +1,47 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.data;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * Marks a position in a list of events so that the next page can be loaded by seeking directly
+ * to it, instead of having the database skip over every preceding row.
+ */
+public class PageCursor
+    implements IsSerializable
+{
+    /** The offset of the first result following this position. */
+    public int offset;
+
+    /** The value of the sort column of the last result preceding this position, in
+     * milliseconds. */
+    public long sortValue;
+
+    /** The fractional second of the sort column value, in nanoseconds. The database may keep
+     * times more precisely than milliseconds, and seeking from a truncated time would skip or
+     * repeat rows that differ by less than a millisecond. */
+    public int sortNanos;
+
+    /** The id of the last event preceding this position. Used to break ties in the sort. */
+    public int eventId;
+
+    public PageCursor ()
+    {
+    }
+
+    public PageCursor (int offset, long sortValue, int sortNanos, int eventId)
+    {
+        this.offset = offset;
+        this.sortValue = sortValue;
+        this.sortNanos = sortNanos;
+        this.eventId = eventId;
+    }
+
+    @Override public String toString ()
+    {
+        return "PageCursor [offset=" + offset + ", sortValue=" + sortValue +
+            ", sortNanos=" + sortNanos + ", eventId=" + eventId + "]";
+    }
+}
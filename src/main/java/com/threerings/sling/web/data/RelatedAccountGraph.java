@@ -0,0 +1,23 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.data;
+
+import java.util.List;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * The machine identifiers reachable from an account by way of the accounts that share them, up
+ * to some number of hops, along with all the accounts that have used each of them.
+ */
+public class RelatedAccountGraph
+    implements IsSerializable
+{
+    /** The machine identifiers reached, nearest first. */
+    public List<MachineIdentity> idents;
+
+    /** Whether the search stopped because it found too many accounts, leaving some of the
+     * accounts within range unexplored. */
+    public boolean truncated;
+}
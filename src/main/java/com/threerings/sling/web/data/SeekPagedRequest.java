@@ -0,0 +1,28 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.data;
+
+import com.threerings.gwt.util.PagedRequest;
+
+/**
+ * A paged request that may also carry the position at which the requested page starts.
+ */
+public class SeekPagedRequest extends PagedRequest
+{
+    /** The position at which the requested page starts, or null if not known. If not null, the
+     * offset of the cursor must match the offset of the request. */
+    public PageCursor after;
+
+    public SeekPagedRequest ()
+    {
+    }
+
+    public SeekPagedRequest (PagedRequest request, PageCursor after)
+    {
+        this.offset = request.offset;
+        this.count = request.count;
+        this.needCount = request.needCount;
+        this.after = after;
+    }
+}
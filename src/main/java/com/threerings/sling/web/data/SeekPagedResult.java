@@ -0,0 +1,20 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.data;
+
+import com.threerings.gwt.util.PagedResult;
+
+/**
+ * A paged result that also provides the position at which the following page starts, and
+ * whether the total is exact.
+ */
+public class SeekPagedResult<T> extends PagedResult<T>
+{
+    /** The position immediately after the last result in this page, or null if the query does
+     * not support seeking or the page is empty. */
+    public PageCursor next;
+
+    /** If set, the total was not counted exactly, and there are at least this many results. */
+    public boolean estimated;
+}
@@ -0,0 +1,159 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.threerings.sling.server.persist.SlingRepository;
+
+import static com.threerings.sling.Log.log;
+
+/**
+ * Records agent activity without writing to the database on request threads. Activity is noted
+ * in memory and written out in one batch every {@link #FLUSH_INTERVAL} and on {@link #shutdown}.
+ * Activity is reported from memory, picking up the activity written by other nodes since the
+ * last flush, so that reporting does not read the whole table.
+ */
+@Singleton
+public class AgentActivityRecorder
+{
+    @Inject public AgentActivityRecorder (SlingRepository slingRepo)
+    {
+        _slingRepo = slingRepo;
+        _flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "AgentActivityFlusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run () {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notes that the given agent is doing something that looks like being on duty.
+     */
+    public void noteActivity (String accountName)
+    {
+        long now = System.currentTimeMillis();
+        _pending.put(accountName, now);
+        _activity.put(accountName, now);
+    }
+
+    /**
+     * Returns the most recent activity time of each agent.
+     */
+    public synchronized HashMap<String, Long> getActivity ()
+    {
+        if (!_loaded) {
+            merge(_slingRepo.getAgentActivity());
+            _lastRead = System.currentTimeMillis();
+            _loaded = true;
+        }
+        return Maps.newHashMap(_activity);
+    }
+
+    /**
+     * Stops the periodic flushing and writes out any activity not yet written.
+     */
+    public void shutdown ()
+    {
+        _flusher.shutdown();
+        try {
+            _flusher.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Writes out the activity noted since the last flush and reads the activity written by other
+     * nodes.
+     */
+    protected synchronized void flush ()
+    {
+        Map<String, Long> activity = Maps.newHashMap();
+        for (String accountName : _pending.keySet()) {
+            Long time = _pending.remove(accountName);
+            if (time != null) {
+                activity.put(accountName, time);
+            }
+        }
+
+        if (!activity.isEmpty()) {
+            try {
+                _slingRepo.noteAgentActivity(activity);
+            } catch (Exception e) {
+                log.warning("Failed to write agent activity", "agents", activity.size(), e);
+                // try again next time, unless there is newer activity to write by then
+                for (Map.Entry<String, Long> entry : activity.entrySet()) {
+                    _pending.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        if (_loaded) {
+            // other nodes write activity up to a flush interval after it happens, so look back
+            // far enough to catch anything written since our last read
+            long now = System.currentTimeMillis();
+            try {
+                merge(_slingRepo.getAgentActivity(_lastRead - 2 * FLUSH_INTERVAL));
+                _lastRead = now;
+            } catch (Exception e) {
+                log.warning("Failed to read agent activity", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the given activity times to our view, keeping the latest time for each agent.
+     */
+    protected void merge (Map<String, Long> activity)
+    {
+        for (Map.Entry<String, Long> entry : activity.entrySet()) {
+            String accountName = entry.getKey();
+            Long time = entry.getValue(), current;
+            // don't clobber activity noted on another thread while we were reading
+            while ((current = _activity.putIfAbsent(accountName, time)) != null &&
+                    current < time && !_activity.replace(accountName, current, time)) {}
+        }
+    }
+
+    protected final SlingRepository _slingRepo;
+    protected final ScheduledExecutorService _flusher;
+
+    /** Activity noted since the last flush. */
+    protected ConcurrentMap<String, Long> _pending = Maps.newConcurrentMap();
+
+    /** The latest known activity of each agent. */
+    protected ConcurrentMap<String, Long> _activity = Maps.newConcurrentMap();
+
+    /** Whether {@link #_activity} has been loaded from the database. */
+    protected boolean _loaded;
+
+    /** When we last read activity written by other nodes. */
+    protected long _lastRead;
+
+    /** How often we write out activity. Activity was always written at most every five minutes
+     * per agent, so readers already allow for this much delay. */
+    protected static final long FLUSH_INTERVAL = 5 * 60 * 1000L;
+
+    /** How long we wait for a flush in progress to finish when shutting down. */
+    protected static final long SHUTDOWN_WAIT = 10 * 1000L;
+}
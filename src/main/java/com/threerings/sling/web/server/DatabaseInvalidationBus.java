@@ -0,0 +1,149 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.server;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.threerings.sling.server.persist.CacheInvalidationRecord;
+import com.threerings.sling.server.persist.SlingRepository;
+import com.threerings.sling.web.util.LoopbackInvalidationBus;
+
+import static com.threerings.sling.Log.log;
+
+/**
+ * An invalidation bus that needs nothing but the sling database. Invalidations are inserted into
+ * a table that every node polls every {@link #POLL_INTERVAL}, picking up those published by the
+ * other nodes since its last poll. Old invalidations are deleted after {@link #RETENTION}.
+ */
+@Singleton
+public class DatabaseInvalidationBus extends LoopbackInvalidationBus
+{
+    @Inject public DatabaseInvalidationBus (SlingRepository slingRepo)
+    {
+        _slingRepo = slingRepo;
+        _poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "InvalidationPoller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _poller.scheduleWithFixedDelay(new Runnable() {
+            public void run () {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    log.warning("Failed to poll cache invalidations", e);
+                }
+            }
+        }, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override // from LoopbackInvalidationBus
+    public void publish (String cache, String message, Listener source)
+    {
+        super.publish(cache, message, source);
+        try {
+            _slingRepo.publishInvalidation(_node, cache, message);
+        } catch (Exception e) {
+            // the other nodes will catch up when their entries expire
+            log.warning("Failed to publish cache invalidation", "cache", cache,
+                "message", message, e);
+        }
+    }
+
+    @Override // from LoopbackInvalidationBus
+    public void shutdown ()
+    {
+        _poller.shutdownNow();
+    }
+
+    /**
+     * Delivers the invalidations published by other nodes since the last poll, and deletes old
+     * ones now and then.
+     */
+    protected void poll ()
+    {
+        long now = System.currentTimeMillis();
+        if (_lastId < 0) {
+            // nothing is cached yet, so start from the latest invalidation
+            _lastId = _slingRepo.getLastInvalidationId();
+        }
+
+        // ids are assigned on insert but may become visible out of order as the inserting
+        // transactions commit, so look again at any we skipped until they turn up or time out
+        for (Iterator<Long> it = _gaps.values().iterator(); it.hasNext(); ) {
+            if (it.next() < now) {
+                it.remove();
+            }
+        }
+        int afterId = _gaps.isEmpty() ? _lastId : Math.min(_lastId, _gaps.firstKey() - 1);
+
+        List<CacheInvalidationRecord> recs;
+        do {
+            recs = _slingRepo.loadInvalidations(afterId, POLL_BATCH);
+            for (CacheInvalidationRecord rec : recs) {
+                afterId = rec.invalidationId;
+                if (rec.invalidationId <= _lastId && _gaps.remove(rec.invalidationId) == null) {
+                    continue; // already delivered
+                }
+                int firstGap = Math.max(_lastId + 1, rec.invalidationId - POLL_BATCH);
+                for (int id = firstGap; id < rec.invalidationId; id++) {
+                    _gaps.put(id, now + GAP_WAIT);
+                }
+                _lastId = Math.max(_lastId, rec.invalidationId);
+                if (!_node.equals(rec.node)) {
+                    deliver(rec.cache, rec.message, null);
+                }
+            }
+        } while (recs.size() == POLL_BATCH);
+
+        if (now >= _nextPurge) {
+            _nextPurge = now + PURGE_INTERVAL;
+            _slingRepo.purgeInvalidations(now - RETENTION);
+        }
+    }
+
+    protected final SlingRepository _slingRepo;
+    protected final ScheduledExecutorService _poller;
+
+    /** Identifies the invalidations published by this node. */
+    protected final String _node = UUID.randomUUID().toString();
+
+    /** The highest invalidation id we have seen, or -1 before the first poll. */
+    protected int _lastId = -1;
+
+    /** The ids below {@link #_lastId} that we have not seen, in order, mapped to when we stop
+     * looking for them. */
+    protected TreeMap<Integer, Long> _gaps = Maps.newTreeMap();
+
+    /** When we next delete old invalidations. */
+    protected long _nextPurge;
+
+    /** How often we look for new invalidations. */
+    protected static final long POLL_INTERVAL = 250;
+
+    /** The most invalidations we load in one query. */
+    protected static final int POLL_BATCH = 500;
+
+    /** How long we keep looking for a skipped id before assuming it was rolled back. */
+    protected static final long GAP_WAIT = 10 * 1000L;
+
+    /** How often we delete old invalidations. */
+    protected static final long PURGE_INTERVAL = 10 * 60 * 1000L;
+
+    /** How long invalidations are kept before being deleted. */
+    protected static final long RETENTION = 60 * 60 * 1000L;
+}
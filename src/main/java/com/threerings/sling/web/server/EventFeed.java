@@ -0,0 +1,432 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.server;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.threerings.sling.server.UserLogic;
+import com.threerings.sling.server.persist.EventChangeRecord;
+import com.threerings.sling.server.persist.EventSummaryRecord;
+import com.threerings.sling.server.persist.SlingRepository;
+import com.threerings.sling.web.client.SlingService.EventUpdates;
+import com.threerings.sling.web.data.AccountName;
+import com.threerings.sling.web.data.Event;
+
+import static com.threerings.sling.Log.log;
+
+/**
+ * Keeps a short history of event changes for clients waiting on {@link
+ * com.threerings.sling.web.client.SlingService#pollEvents}. Each changed event is loaded from the
+ * database once, by whichever client first asks for it, and shared with all other clients, so the
+ * database load does not grow with the number of agents watching the queue.
+ *
+ * <p>Changes are read from the event change table that every node writes to, every {@link
+ * #POLL_INTERVAL} while clients are waiting, every {@link #IDLE_POLL_INTERVAL} while none are,
+ * and as soon as a change is made on this node. Positions are change ids, which
+ * are the same on every node, so a client may poll any node. Ids are assigned on insert but may
+ * become visible out of order as the inserting transactions commit, so the position given to
+ * clients stops short of any id we skipped until it turns up or times out.</p>
+ */
+@Singleton
+public class EventFeed
+    implements SlingRepository.EventObserver
+{
+    @Inject public EventFeed (SlingRepository slingRepo, UserLogic userLogic)
+    {
+        _slingRepo = slingRepo;
+        _userLogic = userLogic;
+    }
+
+    /**
+     * Starts following the event change table. Called once after construction.
+     */
+    @Inject public void start ()
+    {
+        _poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "EventFeedPoller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _poller.scheduleWithFixedDelay(_tick, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        _slingRepo.addEventObserver(this);
+    }
+
+    /**
+     * Stops following the event change table. Clients still waiting are not answered.
+     */
+    public void shutdown ()
+    {
+        if (_poller != null) {
+            _poller.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the changes after the given position without waiting. If the position is zero,
+     * returns the current position.
+     */
+    public EventUpdates poll (long since)
+    {
+        EventUpdates updates = new EventUpdates();
+        updates.events = Lists.newArrayList();
+        Map<Integer, Change> changes = Maps.newLinkedHashMap();
+        synchronized (this) {
+            updates.seq = _seq;
+            if (since == 0) {
+                return updates;
+            }
+            if (since < _horizon) {
+                // we no longer have, or never had, all the changes the caller missed
+                updates.reset = true;
+                return updates;
+            }
+            if (since >= _seq) {
+                // nothing new, or the caller last polled a node that is slightly ahead of us
+                updates.seq = since;
+                return updates;
+            }
+            for (Change change : _changes.subMap(since, false, _seq, true).values()) {
+                changes.remove(change.eventId);
+                changes.put(change.eventId, change);
+            }
+        }
+
+        load(changes.values());
+        for (Change change : changes.values()) {
+            if (change.event != null) {
+                updates.events.add(change.event);
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Waits up to the given time for changes after the given position and returns them. This
+     * ties up the calling thread, so {@link #await} is preferred where the caller can be
+     * answered later.
+     */
+    public EventUpdates poll (long since, long timeoutMillis)
+        throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        await(since, timeoutMillis, new Runnable() {
+            public void run () {
+                latch.countDown();
+            }
+        });
+        latch.await();
+        return poll(since);
+    }
+
+    /**
+     * Runs the given callback once {@link #poll(long)} has something to report for the given
+     * position, or once the given time has passed. If it already does, the callback is run
+     * immediately on the calling thread, otherwise it is run on the feed's thread, so it must be
+     * quick.
+     */
+    public void await (long since, long timeoutMillis, Runnable callback)
+    {
+        synchronized (this) {
+            if (!isReady(since)) {
+                _waiters.add(new Waiter(since, System.currentTimeMillis() + timeoutMillis,
+                    callback));
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    // from SlingRepository.EventObserver
+    public void eventChanged (int eventId)
+    {
+        // pick up our own changes right away rather than at the next poll
+        if (_poller != null) {
+            _poller.execute(_update);
+        }
+    }
+
+    /**
+     * Returns whether the changes should be loaded now. They are loaded at every tick while
+     * clients are waiting or skipped ids are being looked for, but otherwise only now and then,
+     * to keep the history fresh for clients that come back.
+     */
+    protected synchronized boolean isUpdateDue (long now)
+    {
+        return !_waiters.isEmpty() || !_gaps.isEmpty() || now - _lastUpdate >= IDLE_POLL_INTERVAL;
+    }
+
+    /**
+     * Returns whether {@link #poll(long)} has something to report for the given position.
+     */
+    protected boolean isReady (long since)
+    {
+        return since == 0 || since < _seq || since < _horizon;
+    }
+
+    /**
+     * Loads the changes made since the last update, on any node, and answers the clients waiting
+     * for them or for too long. Only called on the feed's thread.
+     */
+    protected void update ()
+    {
+        long now = System.currentTimeMillis();
+        _lastUpdate = now;
+        int committedId = 0;
+        if (_lastId < 0) {
+            // load some history, so that clients that were polling another node or this one
+            // before it restarted need not start over; anything missing from it is long gone
+            committedId = getLastChangeId();
+            int firstId = Math.max(0, committedId - MAX_CHANGES);
+            synchronized (this) {
+                _lastId = firstId;
+                _seq = _horizon = firstId;
+            }
+        }
+
+        int afterId;
+        synchronized (this) {
+            for (Iterator<Long> it = _gaps.values().iterator(); it.hasNext(); ) {
+                if (it.next() < now) {
+                    it.remove();
+                }
+            }
+            afterId = _gaps.isEmpty() ? _lastId : Math.min(_lastId, _gaps.firstKey() - 1);
+        }
+
+        List<EventChangeRecord> recs;
+        do {
+            recs = loadChanges(afterId, POLL_BATCH);
+            synchronized (this) {
+                for (EventChangeRecord rec : recs) {
+                    afterId = rec.changeId;
+                    if (rec.changeId <= _lastId && _gaps.remove(rec.changeId) == null) {
+                        continue; // already seen
+                    }
+                    int firstGap = Math.max(Math.max(_lastId, committedId) + 1,
+                        rec.changeId - POLL_BATCH);
+                    for (int id = firstGap; id < rec.changeId; id++) {
+                        _gaps.put(id, now + GAP_WAIT);
+                    }
+                    _lastId = Math.max(_lastId, rec.changeId);
+                    if (rec.changeId > _horizon) {
+                        _changes.put((long)rec.changeId, new Change(rec.changeId, rec.eventId));
+                    }
+                }
+            }
+        } while (recs.size() == POLL_BATCH);
+
+        List<Waiter> ready = Lists.newArrayList();
+        synchronized (this) {
+            while (_changes.size() > MAX_CHANGES) {
+                _horizon = Math.max(_horizon, _changes.pollFirstEntry().getKey());
+            }
+            _seq = _gaps.isEmpty() ? _lastId : _gaps.firstKey() - 1;
+            for (Iterator<Waiter> it = _waiters.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (isReady(waiter.since) || waiter.deadline <= now) {
+                    ready.add(waiter);
+                    it.remove();
+                }
+            }
+        }
+        for (Waiter waiter : ready) {
+            try {
+                waiter.callback.run();
+            } catch (Exception e) {
+                log.warning("Event feed callback failed", e);
+            }
+        }
+
+        if (now >= _nextPurge) {
+            _nextPurge = now + PURGE_INTERVAL;
+            purgeChanges(now - RETENTION);
+        }
+    }
+
+    /**
+     * Returns the id of the most recent event change.
+     */
+    protected int getLastChangeId ()
+    {
+        return _slingRepo.getLastEventChangeId();
+    }
+
+    /**
+     * Loads up to the given number of event changes after the given id, in id order.
+     */
+    protected List<EventChangeRecord> loadChanges (int afterId, int limit)
+    {
+        return _slingRepo.loadEventChanges(afterId, limit);
+    }
+
+    /**
+     * Deletes the event changes made before the given time.
+     */
+    protected void purgeChanges (long before)
+    {
+        _slingRepo.purgeEventChanges(before);
+    }
+
+    /**
+     * Loads the events for any of the given changes that have not already been loaded.
+     */
+    protected void load (Iterable<Change> changes)
+    {
+        Map<Integer, Change> unloaded = Maps.newHashMap();
+        for (Change change : changes) {
+            if (change.event == null) {
+                unloaded.put(change.eventId, change);
+            }
+        }
+        if (unloaded.isEmpty()) {
+            return;
+        }
+        for (Event event : loadEvents(unloaded.keySet())) {
+            unloaded.get(event.eventId).event = event;
+        }
+    }
+
+    /**
+     * Loads the current state of the given events.
+     */
+    protected Collection<Event> loadEvents (Set<Integer> eventIds)
+    {
+        List<EventSummaryRecord> evrecs = _slingRepo.loadEventSummaries(eventIds);
+        Set<String> accounts = Sets.newHashSet();
+        for (EventSummaryRecord event : evrecs) {
+            accounts.add(event.source);
+            accounts.add(event.target);
+            accounts.add(event.owner);
+        }
+        Map<String, AccountName> names = _userLogic.resolveNames(accounts);
+        List<Event> events = Lists.newArrayList();
+        for (EventSummaryRecord event : evrecs) {
+            events.add(event.toEvent(names));
+        }
+        return events;
+    }
+
+    /**
+     * A change to an event, and the state of the event after the change once it has been loaded.
+     */
+    protected static class Change
+    {
+        public final long seq;
+        public final int eventId;
+        public volatile Event event;
+
+        public Change (long seq, int eventId)
+        {
+            this.seq = seq;
+            this.eventId = eventId;
+        }
+    }
+
+    /**
+     * A client waiting for changes.
+     */
+    protected static class Waiter
+    {
+        public final long since;
+        public final long deadline;
+        public final Runnable callback;
+
+        public Waiter (long since, long deadline, Runnable callback)
+        {
+            this.since = since;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+    }
+
+    protected final SlingRepository _slingRepo;
+    protected final UserLogic _userLogic;
+    protected ScheduledExecutorService _poller;
+
+    /** Runs {@link #update}, logging any failure. */
+    protected final Runnable _update = new Runnable() {
+        public void run () {
+            try {
+                update();
+            } catch (Exception e) {
+                log.warning("Failed to load event changes", e);
+            }
+        }
+    };
+
+    /** Runs {@link #update} if it is due. */
+    protected final Runnable _tick = new Runnable() {
+        public void run () {
+            if (isUpdateDue(System.currentTimeMillis())) {
+                _update.run();
+            }
+        }
+    };
+
+    /** Recent changes, by position. */
+    protected TreeMap<Long, Change> _changes = Maps.newTreeMap();
+
+    /** The clients waiting for changes. */
+    protected List<Waiter> _waiters = Lists.newArrayList();
+
+    /** The position given to clients, below which we have seen every change. */
+    protected long _seq;
+
+    /** The position after which we have every change, up to {@link #_seq}. */
+    protected long _horizon;
+
+    /** The highest change id we have seen, or -1 before the first update. */
+    protected int _lastId = -1;
+
+    /** The ids below {@link #_lastId} that we have not seen, in order, mapped to when we stop
+     * looking for them. */
+    protected TreeMap<Integer, Long> _gaps = Maps.newTreeMap();
+
+    /** When we last loaded the changes. */
+    protected volatile long _lastUpdate;
+
+    /** When we next delete old changes. */
+    protected long _nextPurge;
+
+    /** The number of changes we remember. */
+    protected static final int MAX_CHANGES = 1000;
+
+    /** How often we look for changes made on other nodes while clients are waiting. */
+    protected static final long POLL_INTERVAL = 250;
+
+    /** How often we look for changes made on other nodes while no clients are waiting. This is
+     * well within {@link #GAP_WAIT}, and we look at every tick while there are gaps, so late
+     * changes are not missed. */
+    protected static final long IDLE_POLL_INTERVAL = 5 * 1000L;
+
+    /** The most changes we load in one query. */
+    protected static final int POLL_BATCH = 500;
+
+    /** How long we keep looking for a skipped id before assuming it was rolled back. */
+    protected static final long GAP_WAIT = 10 * 1000L;
+
+    /** How often we delete old changes. */
+    protected static final long PURGE_INTERVAL = 10 * 60 * 1000L;
+
+    /** How long changes are kept before being deleted. */
+    protected static final long RETENTION = 60 * 60 * 1000L;
+}
@@ -0,0 +1,201 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.server;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+
+import com.threerings.sling.web.data.MachineIdentity.AccountInfo;
+import com.threerings.sling.web.data.MachineIdentity;
+import com.threerings.sling.web.util.SimpleCache;
+
+/**
+ * Caches the related accounts of accounts, by account id. Cached values are never modified.
+ * Changes to the status of an ident or account replace the entries that contain it with updated
+ * copies, which are found using an index of the idents and accounts in each entry. Other nodes
+ * evict the entries that contain the ident or account instead, to be reloaded when next needed.
+ *
+ * <p>Each cached value adds its idents and accounts to the index when it is added and takes them
+ * out again when it is removed, replaced or discarded, so the index counts how many values hold
+ * each one. A value briefly overlapping the one it replaces therefore leaves the index entries
+ * they share in place, whichever of them is seen first.</p>
+ */
+public abstract class RelatedAccountsCache extends SimpleCache<Integer, List<MachineIdentity>>
+{
+    /**
+     * Creates a new cache with the given time to live.
+     */
+    public RelatedAccountsCache (long ttlMillis)
+    {
+        super(ttlMillis);
+    }
+
+    /**
+     * Creates a new cache with the given options. A maximum weight limits the total number of
+     * related accounts across all entries.
+     */
+    public RelatedAccountsCache (Options options)
+    {
+        super(options);
+    }
+
+    /**
+     * Updates the status of the given ident in the cached entries that contain it. A null status
+     * is left as it is.
+     */
+    public void updateIdent (String machIdent, Boolean tainted, Boolean banned)
+    {
+        for (Integer accountId : lookup(_idents, machIdent)) {
+            List<MachineIdentity> idents, updated;
+            do {
+                idents = getIfPresent(accountId);
+                if (idents == null) {
+                    break;
+                }
+                updated = Lists.newArrayListWithCapacity(idents.size());
+                for (MachineIdentity ident : idents) {
+                    if (ident.machIdent.equals(machIdent)) {
+                        ident = copy(ident, ident.accounts);
+                        ident.tainted = (tainted != null) ? tainted : ident.tainted;
+                        ident.banned = (banned != null) ? banned : ident.banned;
+                    }
+                    updated.add(ident);
+                }
+            } while (!replace(accountId, idents, updated));
+        }
+        publish(IDENT_PREFIX + machIdent);
+    }
+
+    /**
+     * Updates the banned status of the given account in the cached entries that contain it.
+     */
+    public void updateAccount (String accountName, boolean banned)
+    {
+        for (Integer accountId : lookup(_accounts, accountName)) {
+            List<MachineIdentity> idents, updated;
+            do {
+                idents = getIfPresent(accountId);
+                if (idents == null) {
+                    break;
+                }
+                updated = Lists.newArrayListWithCapacity(idents.size());
+                for (MachineIdentity ident : idents) {
+                    List<AccountInfo> accounts = Lists.newArrayListWithCapacity(
+                        ident.accounts.size());
+                    boolean changed = false;
+                    for (AccountInfo info : ident.accounts) {
+                        if (info.name.accountName.equals(accountName)) {
+                            AccountInfo copy = new AccountInfo();
+                            copy.name = info.name;
+                            copy.paid = info.paid;
+                            copy.banned = banned;
+                            info = copy;
+                            changed = true;
+                        }
+                        accounts.add(info);
+                    }
+                    updated.add(changed ? copy(ident, accounts) : ident);
+                }
+            } while (!replace(accountId, idents, updated));
+        }
+        publish(ACCOUNT_PREFIX + accountName);
+    }
+
+    @Override // from SimpleCache
+    protected int weigh (Integer accountId, List<MachineIdentity> idents)
+    {
+        int weight = 1;
+        for (MachineIdentity ident : idents) {
+            weight += ident.accounts.size();
+        }
+        return weight;
+    }
+
+    @Override // from SimpleCache
+    protected void added (Integer accountId, List<MachineIdentity> idents)
+    {
+        synchronized (_idents) {
+            for (MachineIdentity ident : idents) {
+                _idents.put(ident.machIdent, accountId);
+                for (AccountInfo info : ident.accounts) {
+                    _accounts.put(info.name.accountName, accountId);
+                }
+            }
+        }
+    }
+
+    @Override // from SimpleCache
+    protected void removed (Integer accountId, List<MachineIdentity> idents)
+    {
+        // take out exactly what this value put in, leaving what other values put in
+        synchronized (_idents) {
+            for (MachineIdentity ident : idents) {
+                _idents.remove(ident.machIdent, accountId);
+                for (AccountInfo info : ident.accounts) {
+                    _accounts.remove(info.name.accountName, accountId);
+                }
+            }
+        }
+    }
+
+    @Override // from SimpleCache
+    protected void invalidated (String message)
+    {
+        Set<Integer> accountIds;
+        if (message != null && message.startsWith(IDENT_PREFIX)) {
+            accountIds = lookup(_idents, message.substring(IDENT_PREFIX.length()));
+        } else if (message != null && message.startsWith(ACCOUNT_PREFIX)) {
+            accountIds = lookup(_accounts, message.substring(ACCOUNT_PREFIX.length()));
+        } else {
+            super.invalidated(message);
+            return;
+        }
+        for (Integer accountId : accountIds) {
+            evict(accountId);
+        }
+    }
+
+    @Override // from SimpleCache
+    protected Integer parseKey (String key)
+    {
+        return Integer.valueOf(key);
+    }
+
+    /**
+     * Returns the account ids indexed under the given key.
+     */
+    protected Set<Integer> lookup (ListMultimap<String, Integer> index, String key)
+    {
+        synchronized (_idents) {
+            return ImmutableSet.copyOf(index.get(key));
+        }
+    }
+
+    /**
+     * Returns a copy of the given ident with the given accounts.
+     */
+    protected static MachineIdentity copy (MachineIdentity ident, List<AccountInfo> accounts)
+    {
+        MachineIdentity copy = new MachineIdentity(ident.machIdent, ident.tainted, ident.banned);
+        copy.hops = ident.hops;
+        copy.accounts = accounts;
+        return copy;
+    }
+
+    /** The ids of the cached accounts related to each ident, once for each value containing the
+     * ident, guarded by itself. */
+    protected ListMultimap<String, Integer> _idents = ArrayListMultimap.create();
+
+    /** The ids of the cached accounts related to each account, once for each time a value
+     * contains the account, guarded by {@link #_idents}. */
+    protected ListMultimap<String, Integer> _accounts = ArrayListMultimap.create();
+
+    /** Prefixes the invalidation messages for changes to an ident and to an account. */
+    protected static final String IDENT_PREFIX = "ident:", ACCOUNT_PREFIX = "account:";
+}
@@ -2,8 +2,11 @@ package com.threerings.sling.web.server;
 
 import java.util.Properties;
 
+import jakarta.servlet.ServletContextEvent;
+
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.name.Names;
 import com.google.inject.servlet.GuiceServletContextListener;
 import com.google.inject.servlet.ServletModule;
@@ -22,6 +25,7 @@ import com.threerings.sling.server.AbstractGameActionHandler;
 import com.threerings.sling.server.AbstractGameInfoProvider;
 import com.threerings.sling.server.GameActionHandler;
 import com.threerings.sling.server.GameInfoProvider;
+import com.threerings.sling.web.util.InvalidationBus;
 import com.threerings.user.depot.DepotUserRepository;
 import com.threerings.util.MessageManager;
 
@@ -66,6 +70,9 @@ public class SampleServletConfig extends GuiceServletContextListener
             bind(GameActionHandler.class).to(AbstractGameActionHandler.class);
             bind(GameInfoProvider.class).to(AbstractGameInfoProvider.class);
 
+            // share cache invalidations with the other nodes through the database
+            bind(InvalidationBus.class).to(DatabaseInvalidationBus.class);
+
             // create sling servlet first
             bind(SlingServlet.class).asEagerSingleton();
 
@@ -76,11 +83,26 @@ public class SampleServletConfig extends GuiceServletContextListener
 
     @Override protected Injector getInjector ()
     {
-        Injector injector = Guice.createInjector(new SlingModule());
+        _injector = Guice.createInjector(new SlingModule());
 
         // now initialize repos so we don't get the "lazily initialized" warning
-        injector.getInstance(PersistenceContext.class).initializeRepositories(true);
+        _injector.getInstance(PersistenceContext.class).initializeRepositories(true);
+
+        return _injector;
+    }
 
-        return injector;
+    @Override public void contextDestroyed (ServletContextEvent event)
+    {
+        super.contextDestroyed(event);
+
+        // the bus is a singleton shared by everything in the injector, so it is shut down here,
+        // once the servlets using it have been destroyed
+        if (_injector != null &&
+                _injector.getExistingBinding(Key.get(InvalidationBus.class)) != null) {
+            _injector.getInstance(InvalidationBus.class).shutdown();
+        }
     }
+
+    /** The injector we created, if any. */
+    protected Injector _injector;
 }
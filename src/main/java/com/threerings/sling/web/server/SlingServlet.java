@@ -3,6 +3,7 @@
 
 package com.threerings.sling.web.server;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.util.ArrayList;
@@ -19,25 +20,38 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.gwt.user.client.rpc.SerializationException;
-import com.google.gwt.user.server.rpc.jakarta.RemoteServiceServlet;
+import com.google.gwt.user.server.rpc.RPCRequest;
 import com.google.gwt.user.server.rpc.UnexpectedException;
+import com.google.gwt.user.server.rpc.jakarta.RPC;
+import com.google.gwt.user.server.rpc.jakarta.RPCServletUtils;
+import com.google.gwt.user.server.rpc.jakarta.RemoteServiceServlet;
 import com.google.inject.Inject;
 
 import com.samskivert.net.MailUtil;
@@ -56,12 +70,14 @@ import com.samskivert.servlet.user.Username;
 import com.threerings.gwt.util.PagedRequest;
 import com.threerings.gwt.util.PagedResult;
 import com.threerings.jsp.taglib.i18n.DefaultLocaleFilter;
+import com.threerings.slink.client.SlinkWaiter;
 import com.threerings.sling.server.GameActionHandler;
 import com.threerings.sling.server.GameInfoProvider;
 import com.threerings.sling.server.UserLogic.Caller;
 import com.threerings.sling.server.UserLogic;
 import com.threerings.sling.server.persist.CategoryRecord;
 import com.threerings.sling.server.persist.EventRecord;
+import com.threerings.sling.server.persist.EventSummaryRecord;
 import com.threerings.sling.server.persist.MessageRecord;
 import com.threerings.sling.server.persist.QuestionRecord;
 import com.threerings.sling.server.persist.SlingRepository;
@@ -74,12 +90,17 @@ import com.threerings.sling.web.data.Category;
 import com.threerings.sling.web.data.Event;
 import com.threerings.sling.web.data.EventFilter;
 import com.threerings.sling.web.data.EventSearch;
-import com.threerings.sling.web.data.MachineIdentity.AccountInfo;
 import com.threerings.sling.web.data.MachineIdentity;
 import com.threerings.sling.web.data.Message;
+import com.threerings.sling.web.data.PageCursor;
 import com.threerings.sling.web.data.Question;
+import com.threerings.sling.web.data.RelatedAccountGraph;
+import com.threerings.sling.web.data.SeekPagedRequest;
+import com.threerings.sling.web.data.SeekPagedResult;
 import com.threerings.sling.web.data.TimeRange;
 import com.threerings.sling.web.data.UserPetition;
+import com.threerings.sling.web.util.CacheMetrics;
+import com.threerings.sling.web.util.InvalidationBus;
 import com.threerings.sling.web.util.SimpleCache;
 import com.threerings.user.OOOUser;
 import com.threerings.util.MessageBundle;
@@ -100,6 +121,37 @@ public abstract class SlingServlet extends RemoteServiceServlet
         super.init(config);
         log.info("Sling servlet initialized", "tz", TimeZone.getDefault());
         _msgs = _msgmgr.getBundle("sling");
+        for (Map.Entry<String, SimpleCache<?, ?>> cache : getCaches().entrySet()) {
+            CacheMetrics.register(getServletName() + "." + cache.getKey(), cache.getValue());
+        }
+    }
+
+    /**
+     * Shares the invalidations of our caches with the other nodes of a cluster. Applications that
+     * run more than one node should bind an invalidation bus, such as
+     * {@link DatabaseInvalidationBus}; without one, changes only affect this node's caches and the
+     * other nodes see them when their entries expire. The bus is not ours to shut down; whatever
+     * creates the injector should do so after the servlet is destroyed, as
+     * {@link SampleServletConfig} does.
+     */
+    @Inject(optional=true) public void setInvalidationBus (InvalidationBus bus)
+    {
+        for (Map.Entry<String, SimpleCache<?, ?>> cache : getCaches().entrySet()) {
+            cache.getValue().attach(bus, cache.getKey());
+        }
+    }
+
+    // from RemoteServiceServlet
+    @Override public void destroy ()
+    {
+        _activity.shutdown();
+        _cacheRefresher.shutdown();
+        _slingRepo.shutdown();
+        _feed.shutdown();
+        for (String name : getCaches().keySet()) {
+            CacheMetrics.unregister(getServletName() + "." + name);
+        }
+        super.destroy();
     }
 
     // from SlingService
@@ -221,6 +273,15 @@ public abstract class SlingServlet extends RemoteServiceServlet
         return _relatedAccounts.get(accountId);
     }
 
+    // from SlingService
+    @Override public RelatedAccountGraph getRelatedAccountGraph (int accountId, int maxHops)
+        throws SlingException
+    {
+        requireAuthedSupport();
+        return _userLogic.getRelatedAccountGraph(getSiteId(), accountId,
+            Math.max(1, Math.min(maxHops, MAX_GRAPH_HOPS)), MAX_GRAPH_ACCOUNTS, MAX_GRAPH_IDENTS);
+    }
+
     // from SlingService
     @Override public void updateAccount (int accountId, String email, String password)
         throws SlingException
@@ -245,7 +306,7 @@ public abstract class SlingServlet extends RemoteServiceServlet
      * Interal version of updateBanned for adding a link.
      */
     protected void updateBanned (
-            int accountId, boolean banned, String reason, boolean untaintIdents, String link)
+            int accountId, boolean banned, final String reason, boolean untaintIdents, String link)
         throws SlingException
     {
         Caller caller = requireAuthedSupport();
@@ -253,8 +314,15 @@ public abstract class SlingServlet extends RemoteServiceServlet
         Account account = _userLogic.updateBanned(
             getSiteId(), accountId, banned, reason, untaintIdents);
         if (banned) {
-            _actionHandler.ban(account.name.accountName);
-            _actionHandler.warn(account.name.accountName, reason);
+            // the warning tells the player why they were banned, so it is only sent once the
+            // ban has gone through; this thread waits for both, but no longer than it takes
+            final String accountName = account.name.accountName;
+            SlinkWaiter.await(_actionHandler.banAsync(accountName).thenCompose(
+                new Function<Void, CompletionStage<Void>>() {
+                    public CompletionStage<Void> apply (Void result) {
+                        return _actionHandler.warnAsync(accountName, reason);
+                    }
+                }), BAN_TIMEOUT);
             recordEvent(Event.Type.SUPPORT_ACTION, caller.username, account.name.accountName,
                 _msgs.get("m.banned", reason), null, link);
         } else {
@@ -262,7 +330,7 @@ public abstract class SlingServlet extends RemoteServiceServlet
             recordEvent(Event.Type.SUPPORT_ACTION, caller.username, account.name.accountName,
                 _msgs.get("m.unbanned"), null, link);
         }
-        updateRelatedAccounts(account, banned);
+        _relatedAccounts.updateAccount(account.name.accountName, banned);
     }
 
     // from SlingService
@@ -408,9 +476,11 @@ public abstract class SlingServlet extends RemoteServiceServlet
             request.count = 1000;
         }
 
-        // load the matching records
+        // load the matching records, caching the counts of all but the queues agents work from,
+        // which change with nearly every action they take
 
-        SlingRepository.PagedQuery<EventRecord> pagedQuery = null;
+        SlingRepository.PagedQuery<EventSummaryRecord> pagedQuery = null;
+        String countKey = null;
         switch (criterion) {
         default:
         case OPEN:
@@ -422,14 +492,17 @@ public abstract class SlingServlet extends RemoteServiceServlet
             break;
         case ALL:
             pagedQuery = _slingRepo.loadAllEvents();
+            countKey = "ALL";
             break;
         case ACCOUNT:
             // query is an account name in this case
             pagedQuery = _slingRepo.loadEvents(query);
+            // accounts are matched without regard to case, so share the count between spellings
+            countKey = "ACCOUNT:" + query.toLowerCase();
             break;
         }
 
-        return toResult(pagedQuery, request);
+        return toResult(pagedQuery, request, countKey);
     }
 
     // from SlingService
@@ -456,13 +529,19 @@ public abstract class SlingServlet extends RemoteServiceServlet
             }
         }
 
-        SlingRepository.PagedQuery<EventRecord> query = _slingRepo.searchEvents(search);
+        SlingRepository.PagedQuery<EventSummaryRecord> query = _slingRepo.searchEvents(search);
 
         if (query == null) {
             throw new SlingException("m.invalid_search");
         }
 
-        return toResult(query, request);
+        // the order of the filters makes no difference to the count
+        List<String> filters = Lists.newArrayList();
+        for (EventFilter filter : search.filters) {
+            filters.add(toCountKey(filter));
+        }
+        Collections.sort(filters);
+        return toResult(query, request, "SEARCH:" + filters);
     }
 
     // from SlingService
@@ -472,13 +551,17 @@ public abstract class SlingServlet extends RemoteServiceServlet
     {
         requireAuthedSupport();
 
+        long[] bounds = Arrays.copyOf(EventResponses.HISTOGRAM_BOUNDS,
+            EventResponses.HISTOGRAM_BOUNDS.length + 1);
+        bounds[bounds.length - 1] = firstResponseMillis;
+        SlingRepository.ResponseTimes times = _slingRepo.getResponseTimes(type, range, bounds);
         EventResponses result = new EventResponses();
-        EventSearch search = new EventSearch(
-            EventFilter.createdIn(range),
-            EventFilter.typeIs(type));
-        result.total = _slingRepo.searchEvents(search).count();
-        search.filters.add(EventFilter.firstResponseIsMoreThan(firstResponseMillis));
-        result.qualified = result.total - _slingRepo.searchEvents(search).count();
+        result.total = times.total();
+        result.qualified = times.countWithin(firstResponseMillis);
+        result.histogram = times.histogram(EventResponses.HISTOGRAM_BOUNDS);
+        result.p50 = times.percentile(50);
+        result.p90 = times.percentile(90);
+        result.p99 = times.percentile(99);
         return result;
     }
 
@@ -505,24 +588,19 @@ public abstract class SlingServlet extends RemoteServiceServlet
             throw new AssertionError();
         }
 
-        // load volume in all requested intervals
-        Calendar d1 = cal.add(calUnit, -count).asCalendar();
-        Calendar d2 = Calendars.withCopy(d1).add(calUnit, 1).asCalendar();
-        EventFilter userReported = EventFilter.typeIsIn(Sets.newHashSet(
-            Event.Type.COMPLAINT, Event.Type.PETITION));
-        EventVolume volume = new EventVolume();
-        volume.begin = d1.getTimeInMillis();
-        volume.eventCounts = new int[count];
-        for (int ii = 0; ii < count; ++ii) {
-            volume.eventCounts[ii] = _slingRepo.searchEvents(new EventSearch(
-                EventFilter.createdIn(new TimeRange(
-                    d1.getTimeInMillis(),
-                    d2.getTimeInMillis())),
-                userReported)).count();
-            d1.add(calUnit, 1);
-            d2.add(calUnit, 1);
+        // compute the boundaries of all requested intervals
+        Calendar cc = cal.add(calUnit, -count).asCalendar();
+        long[] bounds = new long[count + 1];
+        for (int ii = 0; ii <= count; ++ii) {
+            bounds[ii] = cc.getTimeInMillis();
+            cc.add(calUnit, 1);
         }
 
+        // load volume in all of them at once
+        EventVolume volume = new EventVolume();
+        volume.begin = bounds[0];
+        volume.eventCounts = _slingRepo.getVolumeByInterval(bounds, Sets.newHashSet(
+            Event.Type.COMPLAINT, Event.Type.PETITION));
         return volume;
     }
 
@@ -568,7 +646,24 @@ public abstract class SlingServlet extends RemoteServiceServlet
         throws SlingException
     {
         requireAuthedSupport();
-        return _slingRepo.getAgentActivity();
+        return _activity.getActivity();
+    }
+
+    // from SlingService
+    @Override public EventUpdates pollEvents (long since)
+        throws SlingException
+    {
+        Caller caller = requireAuthedSupport();
+
+        // agents waiting on the queue are active, same as if they were refreshing it
+        noteAgentActivity(caller.username);
+
+        // this only waits if the container cannot answer the request later, see processCall
+        try {
+            return _feed.poll(since, POLL_TIMEOUT);
+        } catch (InterruptedException ie) {
+            throw new SlingException("m.internal_error");
+        }
     }
 
     // from SlingService
@@ -608,50 +703,48 @@ public abstract class SlingServlet extends RemoteServiceServlet
         throws SlingException
     {
         Caller caller = requireAuthedUser();
-        EventRecord event = requireEvent(eventId);
-
-        // TODO: find out if this is really called by non-support users. If not, remove this \
-        //       check and the one below.
-        if (!caller.isSupport &&
-            !(caller.username.equals(event.source) && status == Event.Status.PLAYER_CLOSED)) {
-            log.warning("Refusing to update status of event", "who", caller.username,
-                "event", event);
-            throw new SlingException("m.access_denied");
-        }
-
-        // update the event's status
         StringBuilder message = new StringBuilder("Status changed to " + status);
+        EventRecord event = null;
 
-        // some state updates have side effects
-        String newOwner = event.owner;
-        switch (status) {
-        case IN_PROGRESS: // setting to in_progress means claiming
-            newOwner = caller.username;
-            message.append("\nOwner changed to " + newOwner);
-            noteAgentActivity(newOwner);
-            break;
+        if (caller.isSupport && status == Event.Status.IN_PROGRESS) {
+            // agents race each other to claim events, so claiming is a single conditional update
+            if (!_slingRepo.claimEvent(eventId, newOwner(caller, status, message))) {
+                throw new SlingException(_slingRepo.eventExists(eventId) ?
+                    "m.event_changed" : "m.no_such_event");
+            }
+            noteAgentActivity(caller.username);
 
-        case OPEN:
-        case ESCALATED_LEAD:
-        case ESCALATED_ADMIN: // reopening, or escalating means unclaiming
-            newOwner = null;
-            message.append("\nOwner cleared");
-            break;
-        }
+        } else {
+            event = requireEvent(eventId);
+
+            // TODO: find out if this is really called by non-support users. If not, remove
+            //       this check and the one below.
+            if (!caller.isSupport &&
+                !(caller.username.equals(event.source) && status == Event.Status.PLAYER_CLOSED)) {
+                log.warning("Refusing to update status of event", "who", caller.username,
+                    "event", event);
+                throw new SlingException("m.access_denied");
+            }
 
-        // now update the persistent event record
-        _slingRepo.updateEvent(event.eventId, status, newOwner);
+            // update the event's status, unless someone else got there first
+            String newOwner = changesOwner(status) ?
+                newOwner(caller, status, message) : event.owner;
+            if (!_slingRepo.updateEvent(eventId, event.version, status, newOwner)) {
+                throw new SlingException("m.event_changed");
+            }
+        }
 
         // add a message to log the change
         MessageRecord msgrec = new MessageRecord();
-        msgrec.eventId = event.eventId;
+        msgrec.eventId = eventId;
         msgrec.author = caller.username;
         msgrec.access = Message.Access.SUPPORT;
         msgrec.text = message.toString();
         _slingRepo.insertMessage(msgrec, false);
 
         // update the first reponse if this message is closing the complaint
-        if (!status.isOpen() && event.firstResponse == null && event.type == Event.Type.COMPLAINT) {
+        if (event != null && !status.isOpen() && event.firstResponse == null &&
+                event.type == Event.Type.COMPLAINT) {
             event.firstResponse = msgrec.entered.getTime() - event.entered.getTime();
             _slingRepo.updateFirstResponse(event);
         }
@@ -674,7 +767,9 @@ public abstract class SlingServlet extends RemoteServiceServlet
             throw new SlingException("e.invalid_state");
         }
 
-        _slingRepo.setWaitingForPlayer(eventId, waitingForPlayer);
+        if (!_slingRepo.setWaitingForPlayer(eventId, event.version, waitingForPlayer)) {
+            throw new SlingException("m.event_changed");
+        }
 
         // add a message to log the change
         MessageRecord msgrec = new MessageRecord();
@@ -724,8 +819,55 @@ public abstract class SlingServlet extends RemoteServiceServlet
     @Override public void updateEvents (int[] eventIds, Event.Status status)
         throws SlingException
     {
-        for (int eventId : eventIds) {
-            updateEvent(eventId, status);
+        Caller caller = requireAuthedUser();
+        if (!caller.isSupport) {
+            // players may only close their own events, which updateEvent checks
+            for (int eventId : eventIds) {
+                updateEvent(eventId, status);
+            }
+            return;
+        }
+
+        Set<Integer> ids = Sets.newHashSet(Ints.asList(eventIds));
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<EventSummaryRecord> events = _slingRepo.loadEventSummaries(ids);
+        if (events.size() < ids.size()) {
+            throw new SlingException("m.no_such_event");
+        }
+
+        // the change is the same for every event, so update them all together, with messages
+        // to log the change and the first responses of any complaints that are now closed,
+        // provided nobody else has changed any of them since we loaded them
+        StringBuilder message = new StringBuilder("Status changed to " + status);
+        boolean changeOwner = changesOwner(status);
+        String newOwner = changeOwner ? newOwner(caller, status, message) : null;
+        Map<Integer, Integer> versions = Maps.newHashMap();
+        List<MessageRecord> msgrecs = Lists.newArrayListWithExpectedSize(events.size());
+        Map<Integer, Timestamp> responded = Maps.newHashMap();
+        for (EventSummaryRecord event : events) {
+            versions.put(event.eventId, event.version);
+            MessageRecord msgrec = new MessageRecord();
+            msgrec.eventId = event.eventId;
+            msgrec.author = caller.username;
+            msgrec.access = Message.Access.SUPPORT;
+            msgrec.text = message.toString();
+            msgrecs.add(msgrec);
+            if (!status.isOpen() && event.firstResponse == null &&
+                    event.type == Event.Type.COMPLAINT) {
+                responded.put(event.eventId, event.entered);
+            }
+        }
+        Set<Integer> skipped = _slingRepo.updateEvents(
+            versions, status, changeOwner, newOwner, msgrecs, responded);
+        if (!skipped.isEmpty()) {
+            log.info("Events changed before they could be updated", "who", caller.username,
+                "status", status, "eventIds", skipped);
+            throw new SlingException("m.events_changed");
+        }
+        if (status == Event.Status.IN_PROGRESS) {
+            noteAgentActivity(caller.username);
         }
     }
 
@@ -747,8 +889,10 @@ public abstract class SlingServlet extends RemoteServiceServlet
 
         AccountName owner = account.name;
 
-        // now update the persistent event record
-        _slingRepo.updateEvent(event.eventId, status, owner.accountName);
+        // now update the persistent event record, unless someone else changed it meanwhile
+        if (!_slingRepo.updateEvent(eventId, event.version, status, owner.accountName)) {
+            throw new SlingException("m.event_changed");
+        }
 
         // add a message to log this assignment
         MessageRecord msgrec = new MessageRecord();
@@ -812,31 +956,39 @@ public abstract class SlingServlet extends RemoteServiceServlet
         boolean isReply = caller.isSupport && event.type == Event.Type.PETITION &&
             access == Message.Access.NORMAL;
 
-        // create and add the message record
-        MessageRecord msgrec = new MessageRecord();
-        msgrec.eventId = eventId;
-        msgrec.author = caller.username;
-        msgrec.text = message;
-        msgrec.access = access;
-        _slingRepo.insertMessage(msgrec, isReply || event.type != Event.Type.PETITION);
+        // work out all the changes to the event so they can be made together
+        SlingRepository.MessageEffects effects = new SlingRepository.MessageEffects();
+        effects.touchEvent = isReply || event.type != Event.Type.PETITION;
 
         PostMessageResult result = new PostMessageResult();
-
         result.waitingForPlayer = event.waitingForPlayer;
         if (updateWaitingFlag) {
             if (!event.waitingForPlayer && caller.isSupport &&
                     access == Message.Access.NORMAL) {
-                _slingRepo.setWaitingForPlayer(event.eventId, result.waitingForPlayer = true);
+                effects.waitingForPlayer = result.waitingForPlayer = true;
             } else if (event.waitingForPlayer && isOwner) {
-                _slingRepo.setWaitingForPlayer(event.eventId, result.waitingForPlayer = false);
+                effects.waitingForPlayer = result.waitingForPlayer = false;
             }
         }
 
         // if this is the fist support reply to a petition or the first support message for a
         // complaint, init the first response field
-        if (event.firstResponse == null && (isReply || event.type == Event.Type.COMPLAINT)) {
-            event.firstResponse = msgrec.entered.getTime() - event.entered.getTime();
-            _slingRepo.updateFirstResponse(event);
+        effects.firstResponse = isReply || event.type == Event.Type.COMPLAINT;
+
+        // a reply from the player puts a claimed event back in the queue
+        if (isOwner && (Event.Status.IN_PROGRESS == event.getStatus())) {
+            effects.status = Event.Status.OPEN;
+            effects.owner = null;
+        }
+
+        // create and add the message record
+        MessageRecord msgrec = new MessageRecord();
+        msgrec.eventId = eventId;
+        msgrec.author = caller.username;
+        msgrec.text = message;
+        msgrec.access = access;
+        if (!_slingRepo.applyMessage(msgrec, event, effects)) {
+            throw new SlingException("m.event_changed");
         }
 
         // if this is a reply to a non-anonymous user petition, send a message to the user
@@ -850,10 +1002,6 @@ public abstract class SlingServlet extends RemoteServiceServlet
             }
         }
 
-        if (isOwner && (Event.Status.IN_PROGRESS == event.getStatus())) {
-            _slingRepo.updateEvent(event.eventId, Event.Status.OPEN, null);
-        }
-
         result.message = msgrec.toMessage(_userLogic.resolveNames(
             Collections.singleton(caller.username)));
         if (!caller.isSupport) {
@@ -873,7 +1021,7 @@ public abstract class SlingServlet extends RemoteServiceServlet
         _userLogic.updateIdentBanned(getSiteId(), machIdent, banned);
 
         // update the cache
-        updateRelatedAccounts(machIdent, null, banned);
+        _relatedAccounts.updateIdent(machIdent, null, banned);
     }
 
     // from SlingService
@@ -886,7 +1034,7 @@ public abstract class SlingServlet extends RemoteServiceServlet
         _userLogic.updateIdentTainted(getSiteId(), machIdent, tainted);
 
         // update the cache
-        updateRelatedAccounts(machIdent, tainted, null);
+        _relatedAccounts.updateIdent(machIdent, tainted, null);
     }
 
     // from SlingService
@@ -950,6 +1098,75 @@ public abstract class SlingServlet extends RemoteServiceServlet
         }
     }
 
+    // from RemoteServiceServlet
+    @Override public String processCall (RPCRequest rpcRequest)
+        throws SerializationException
+    {
+        // rather than tie up a request thread while a poll waits for changes, answer it later
+        HttpServletRequest req = getThreadLocalRequest();
+        if (rpcRequest.getMethod().getName().equals("pollEvents") && req.isAsyncSupported()) {
+            long since = (Long)rpcRequest.getParameters()[0];
+            try {
+                Caller caller = requireAuthedSupport();
+                noteAgentActivity(caller.username);
+            } catch (SlingException se) {
+                return RPC.encodeResponseForFailure(rpcRequest.getMethod(), se,
+                    rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+            }
+            pollEventsLater(req.startAsync(), rpcRequest, since);
+            throw POLL_STARTED;
+        }
+        return super.processCall(rpcRequest);
+    }
+
+    // from RemoteServiceServlet
+    @Override protected void doUnexpectedFailure (Throwable e)
+    {
+        if (e != POLL_STARTED) {
+            super.doUnexpectedFailure(e);
+        }
+    }
+
+    /**
+     * Answers a call to {@link #pollEvents} through the given asynchronous context once there are
+     * changes or the poll times out.
+     */
+    protected void pollEventsLater (
+        final AsyncContext async, final RPCRequest rpcRequest, final long since)
+    {
+        async.setTimeout(POLL_TIMEOUT + ASYNC_GRACE);
+        _feed.await(since, POLL_TIMEOUT, new Runnable() {
+            public void run () {
+                // the feed calls us on its own thread, so load and write from a container one
+                async.start(new Runnable() {
+                    public void run () {
+                        finishPollEvents(async, rpcRequest, since);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the changes after the given position as the response to the given call.
+     */
+    protected void finishPollEvents (AsyncContext async, RPCRequest rpcRequest, long since)
+    {
+        HttpServletRequest req = (HttpServletRequest)async.getRequest();
+        HttpServletResponse rsp = (HttpServletResponse)async.getResponse();
+        try {
+            String payload = RPC.encodeResponseForSuccess(rpcRequest.getMethod(),
+                _feed.poll(since), rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+            RPCServletUtils.writeResponse(getServletContext(), rsp, payload,
+                shouldCompressResponse(req, rsp, payload));
+        } catch (Throwable t) {
+            log.warning("Failed to answer event poll", "since", since, t);
+            RPCServletUtils.writeResponseForUnexpectedFailure(getServletContext(), rsp, t);
+        } finally {
+            async.complete();
+        }
+    }
+
     // from SlingService
     @Override public AuthUrl dummy1 ()
         throws SlingException
@@ -1142,6 +1359,40 @@ public abstract class SlingServlet extends RemoteServiceServlet
         return user;
     }
 
+    /**
+     * Returns true if changing an event to the given status also changes its owner.
+     */
+    protected static boolean changesOwner (Event.Status status)
+    {
+        switch (status) {
+        case IN_PROGRESS:
+        case OPEN:
+        case ESCALATED_LEAD:
+        case ESCALATED_ADMIN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the new owner of events changed to the given status by the given caller, and adds
+     * a description of the ownership change to the given message. The status must be one for
+     * which {@link #changesOwner} is true.
+     */
+    protected String newOwner (Caller caller, Event.Status status, StringBuilder message)
+    {
+        if (status == Event.Status.IN_PROGRESS) {
+            // setting to in_progress means claiming
+            message.append("\nOwner changed to " + caller.username);
+            return caller.username;
+        }
+
+        // reopening, or escalating means unclaiming
+        message.append("\nOwner cleared");
+        return null;
+    }
+
     protected EventRecord requireEvent (int eventId)
         throws SlingException
     {
@@ -1217,18 +1468,48 @@ public abstract class SlingServlet extends RemoteServiceServlet
         return evrec.eventId;
     }
 
+    /**
+     * Loads the requested page of the given query. If the request needs a count and a count key
+     * is given, the count is looked up in the count cache, and counted if not found. Counting
+     * stops at {@link #MAX_EXACT_COUNT}, beyond which the total is marked as an estimate.
+     */
     protected PagedResult<Event> toResult (
-        SlingRepository.PagedQuery<EventRecord> query, PagedRequest request)
+        SlingRepository.PagedQuery<EventSummaryRecord> query, PagedRequest request,
+        String countKey)
     {
-        PagedResult<Event> result = new PagedResult<Event>();
+        SeekPagedResult<Event> result = new SeekPagedResult<Event>();
         if (request.needCount) {
-            result.total = query.count();
+            Integer total = (countKey == null) ? null : _counts.getIfPresent(countKey);
+            if (total == null) {
+                total = query.count(MAX_EXACT_COUNT);
+                if (countKey != null) {
+                    _counts.put(countKey, total);
+                }
+            }
+            result.total = total;
+            result.estimated = total > MAX_EXACT_COUNT;
+        }
+
+        // seek straight to the page if the client knows where it starts and the query supports it
+        SlingRepository.SeekableQuery<EventSummaryRecord> seekable =
+            (query instanceof SlingRepository.SeekableQuery) ?
+                (SlingRepository.SeekableQuery<EventSummaryRecord>)query : null;
+        PageCursor after = (request instanceof SeekPagedRequest) ?
+            ((SeekPagedRequest)request).after : null;
+        List<EventSummaryRecord> evrecs;
+        if (seekable != null && after != null && after.offset == request.offset) {
+            evrecs = seekable.loadAfter(after, request.count);
+        } else {
+            evrecs = query.load(request.offset, request.count);
+        }
+        if (seekable != null && !evrecs.isEmpty()) {
+            result.next = seekable.cursorAfter(
+                evrecs.get(evrecs.size() - 1), request.offset + evrecs.size());
         }
 
-        List<EventRecord> evrecs = query.load(request.offset, request.count);
         // resolve all accounts associated with these events
         HashSet<String> accounts = new HashSet<String>();
-        for (EventRecord event : evrecs) {
+        for (EventSummaryRecord event : evrecs) {
             accounts.add(event.source);
             accounts.add(event.target);
             accounts.add(event.owner);
@@ -1236,40 +1517,12 @@ public abstract class SlingServlet extends RemoteServiceServlet
         Map<String, AccountName> names = _userLogic.resolveNames(accounts);
 
         result.page = Lists.newArrayListWithExpectedSize(evrecs.size());
-        for (EventRecord event : evrecs) {
+        for (EventSummaryRecord event : evrecs) {
             result.page.add(event.toEvent(names));
         }
         return result;
     }
 
-    protected void updateRelatedAccounts (String machIdent, Boolean tainted, Boolean banned)
-    {
-        // update the cache
-        for (List<MachineIdentity> idents : _relatedAccounts.values()) {
-            for (MachineIdentity ident : idents) {
-                if (ident.machIdent.equals(machIdent)) {
-                    ident.banned = banned != null ? banned : ident.banned;
-                    ident.tainted = tainted != null ? tainted : ident.tainted;
-                    break;
-                }
-            }
-        }
-    }
-
-    protected void updateRelatedAccounts (Account account, boolean banned)
-    {
-        // update the cache
-        for (List<MachineIdentity> idents : _relatedAccounts.values()) {
-            for (MachineIdentity ident : idents) {
-                for (AccountInfo info : ident.accounts) {
-                    if (info.name.equals(account.name)) {
-                        info.banned = banned;
-                    }
-                }
-            }
-        }
-    }
-
     protected void fillSessionInfo (EventRecord evrec)
     {
         HttpServletRequest req = getThreadLocalRequest();
@@ -1306,12 +1559,31 @@ public abstract class SlingServlet extends RemoteServiceServlet
      */
     protected void noteAgentActivity (String accountName)
     {
-        Long time = _activityWriteCache.get(accountName);
-        if (time != null && System.currentTimeMillis() - time < 5 * 60 * 1000L) {
-            return;
+        _activity.noteActivity(accountName);
+    }
+
+    /**
+     * Returns the part of a count cache key that identifies the given filter. Names are matched
+     * without regard to case, so they are lower cased to share counts between spellings.
+     */
+    protected static String toCountKey (EventFilter filter)
+    {
+        switch (filter.type) {
+        case ACCOUNT_NAME_IS:
+        case GAME_NAME_IS:
+            return filter.toString().toLowerCase();
+        default:
+            return filter.toString();
         }
-        long now = _slingRepo.noteAgentActivity(accountName);
-        _activityWriteCache.put(accountName, now);
+    }
+
+    /**
+     * Returns our caches by name, for sharing their invalidations and exporting their statistics.
+     */
+    protected Map<String, SimpleCache<?, ?>> getCaches ()
+    {
+        return ImmutableMap.<String, SimpleCache<?, ?>>of(
+            "callers", _callers, "relatedAccounts", _relatedAccounts, "faqs", _faqs);
     }
 
     /** Provides access to all of our dependencies. */
@@ -1319,6 +1591,8 @@ public abstract class SlingServlet extends RemoteServiceServlet
     @Inject protected GameActionHandler _actionHandler;
     @Inject protected GameInfoProvider _infoProvider;
     @Inject protected SlingRepository _slingRepo;
+    @Inject protected EventFeed _feed;
+    @Inject protected AgentActivityRecorder _activity;
     @Inject protected SiteIdentifier _siteIdentifier;
 
     protected Properties loadOOOProps () {
@@ -1338,9 +1612,20 @@ public abstract class SlingServlet extends RemoteServiceServlet
         }
     };
 
+    /** Refreshes our cache entries ahead of their expiry. */
+    protected ExecutorService _cacheRefresher = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "SlingCacheRefresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     /** A cache of authenticated users. */
-    protected SimpleCache<String, Caller> _callers =
-            new SimpleCache<String, Caller>(GENERAL_REFRESH_INTERVAL) {
+    protected SimpleCache<String, Caller> _callers = new SimpleCache<String, Caller>(
+            SimpleCache.options(GENERAL_REFRESH_INTERVAL)
+                .maximumSize(MAX_CACHED_CALLERS).recordStats()) {
         @Override protected Caller compute (String authtok) throws SlingException {
             Caller caller = _userLogic.loadCaller(authtok);
             if (caller == null) {
@@ -1348,12 +1633,18 @@ public abstract class SlingServlet extends RemoteServiceServlet
             }
             return caller;
         }
+        // session tokens are not published to other nodes, where evicting a logged out caller
+        // means hashing each cached token; logouts are rare enough for that to be fine
+        @Override protected String toMessage (String authtok) {
+            return Hashing.sha256().hashString(authtok, StandardCharsets.UTF_8).toString();
+        }
     };
 
     /** A mapping from account id to a list of accounts that have played from a machine identifier
      * from which the original account has played. */
-    protected SimpleCache<Integer, List<MachineIdentity>> _relatedAccounts =
-            new SimpleCache<Integer, List<MachineIdentity>>(GENERAL_REFRESH_INTERVAL) {
+    protected RelatedAccountsCache _relatedAccounts = new RelatedAccountsCache(
+            SimpleCache.options(GENERAL_REFRESH_INTERVAL)
+                .maximumWeight(MAX_CACHED_RELATED_ACCOUNTS).recordStats()) {
         @Override protected List<MachineIdentity> compute (Integer accountId)
             throws SlingException {
             return _userLogic.getRelatedAccounts(getSiteId(), accountId);
@@ -1361,8 +1652,9 @@ public abstract class SlingServlet extends RemoteServiceServlet
     };
 
     /** A cached copy of the FAQs. */
-    protected SimpleCache<Integer, List<Category>> _faqs =
-            new SimpleCache<Integer, List<Category>>(FAQ_REFRESH_INTERVAL) {
+    protected SimpleCache<Integer, List<Category>> _faqs = new SimpleCache<Integer, List<Category>>(
+            SimpleCache.options(FAQ_REFRESH_INTERVAL)
+                .refreshAfterWrite(FAQ_REFRESH_AHEAD, _cacheRefresher).recordStats()) {
         @Override protected List<Category> compute (Integer key) throws SlingException {
             Preconditions.checkArgument(key == 0);
 
@@ -1394,14 +1686,17 @@ public abstract class SlingServlet extends RemoteServiceServlet
         }
     };
 
+    /** Recently counted totals for event queries, keyed by query type and parameters. Lists
+     * are not invalidated when events change, so the totals may be out of date briefly. */
+    protected Cache<String, Integer> _counts = CacheBuilder.newBuilder()
+        .expireAfterWrite(COUNT_CACHE_TTL, java.util.concurrent.TimeUnit.MILLISECONDS)
+        .maximumSize(MAX_CACHED_COUNTS)
+        .build();
+
     @Inject protected MessageManager _msgmgr;
 
     protected MessageBundle _msgs;
 
-    /** Caches agent last activity times. This is different from a SimpleCache because values
-     * are written frequently and read rarely. */
-    protected ConcurrentMap<String, Long> _activityWriteCache = Maps.newConcurrentMap();
-
 //    protected static final DateFormat DBG_FMT =
 //        DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG);
 
@@ -1411,9 +1706,53 @@ public abstract class SlingServlet extends RemoteServiceServlet
     /** Refresh our cached FAQs every five minutes. */
     protected static final long FAQ_REFRESH_INTERVAL = 5 * 60 * 1000L; // 5 * 60 * 1000L;
 
+    /** Reload our cached FAQs in the background when read after four minutes, so that readers
+     * are not held up when they expire. */
+    protected static final long FAQ_REFRESH_AHEAD = 4 * 60 * 1000L;
+
+    /** The most authenticated users we cache. */
+    protected static final long MAX_CACHED_CALLERS = 10000;
+
+    /** The most related accounts we cache, across all of the accounts they are related to. */
+    protected static final long MAX_CACHED_RELATED_ACCOUNTS = 100000;
+
     /** Refresh our cached user languages every hour. */
     protected static final long USER_LANGUAGES_REFRESH_INTERVAL = 60 * 60 * 1000L;
 
     /** Refresh our cached namess every five minutes. */
     protected static final long GENERAL_REFRESH_INTERVAL = 5 * 60 * 1000L;
+
+    /** Hold event polls open for up to 25 seconds, to stay clear of proxy timeouts. */
+    protected static final long POLL_TIMEOUT = 25 * 1000L;
+
+    /** How much longer than a poll we let the container wait before it gives up on one. */
+    protected static final long ASYNC_GRACE = 5 * 1000L;
+
+    /** Thrown to tell the RPC machinery that a poll will be answered later. */
+    protected static final RuntimeException POLL_STARTED = new RuntimeException("Poll started") {
+        @Override public Throwable fillInStackTrace () {
+            return this;
+        }
+    };
+
+    /** Reuse event counts for half a minute. */
+    protected static final long COUNT_CACHE_TTL = 30 * 1000L;
+
+    /** The most event counts we will cache. */
+    protected static final int MAX_CACHED_COUNTS = 1000;
+
+    /** Stop counting events beyond this many and report the total as an estimate. */
+    protected static final int MAX_EXACT_COUNT = 10000;
+
+    /** How long we wait for the game to ban and warn an account. */
+    protected static final long BAN_TIMEOUT = 30 * 1000L;
+
+    /** The most hops away from an account we look for related accounts. */
+    protected static final int MAX_GRAPH_HOPS = 4;
+
+    /** The most related accounts we find, and explore from when looking for more. */
+    protected static final int MAX_GRAPH_ACCOUNTS = 500;
+
+    /** The most machine idents we look up the accounts of when looking for related accounts. */
+    protected static final int MAX_GRAPH_IDENTS = 1000;
 }
@@ -0,0 +1,177 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheStats;
+
+import static com.threerings.sling.Log.log;
+
+/**
+ * Exports the statistics of simple caches as JMX beans named
+ * {@code com.threerings.sling:type=SimpleCache,name=<name>}, where they can be read by any JMX
+ * client or scraped by a JMX exporter. Caches should be created with
+ * {@link SimpleCache.Options#recordStats}, otherwise only their sizes are meaningful.
+ */
+public class CacheMetrics
+{
+    /**
+     * The statistics of a cache, as seen through JMX.
+     */
+    public interface SimpleCacheMXBean
+    {
+        /** Returns the number of entries in the cache. */
+        long getSize ();
+
+        /** Returns the number of reads that found an entry. */
+        long getHitCount ();
+
+        /** Returns the number of reads that had to compute an entry. */
+        long getMissCount ();
+
+        /** Returns the fraction of reads that found an entry, or 1 if there have been none. */
+        double getHitRate ();
+
+        /** Returns the number of entries computed or refreshed successfully. */
+        long getLoadSuccessCount ();
+
+        /** Returns the number of entries whose computation or refresh failed. */
+        long getLoadExceptionCount ();
+
+        /** Returns the total time spent computing and refreshing entries, in nanoseconds. */
+        long getTotalLoadTime ();
+
+        /** Returns the average time spent computing or refreshing an entry, in nanoseconds. */
+        double getAverageLoadPenalty ();
+
+        /** Returns the number of entries removed because they expired or to make room. */
+        long getEvictionCount ();
+    }
+
+    /**
+     * Exports the statistics of the given cache under the given name, replacing any cache
+     * already exported under it.
+     */
+    public static void register (String name, SimpleCache<?, ?> cache)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName oname = toObjectName(name);
+            SimpleCacheMXBean bean = new CacheBean(cache);
+            try {
+                server.registerMBean(bean, oname);
+            } catch (InstanceAlreadyExistsException iaee) {
+                // left over from a previous deployment of the webapp
+                server.unregisterMBean(oname);
+                server.registerMBean(bean, oname);
+            }
+        } catch (JMException jme) {
+            log.warning("Failed to export cache metrics", "name", name, jme);
+        }
+    }
+
+    /**
+     * Stops exporting the statistics of the cache with the given name.
+     */
+    public static void unregister (String name)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName oname = toObjectName(name);
+            if (server.isRegistered(oname)) {
+                server.unregisterMBean(oname);
+            }
+        } catch (JMException jme) {
+            log.warning("Failed to unexport cache metrics", "name", name, jme);
+        }
+    }
+
+    protected static ObjectName toObjectName (String name)
+        throws JMException
+    {
+        return new ObjectName(DOMAIN + ":type=SimpleCache,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Reads the statistics of a cache each time they are asked for.
+     */
+    protected static class CacheBean
+        implements SimpleCacheMXBean
+    {
+        public CacheBean (SimpleCache<?, ?> cache)
+        {
+            _cache = cache;
+        }
+
+        // from SimpleCacheMXBean
+        public long getSize ()
+        {
+            return _cache.size();
+        }
+
+        // from SimpleCacheMXBean
+        public long getHitCount ()
+        {
+            return stats().hitCount();
+        }
+
+        // from SimpleCacheMXBean
+        public long getMissCount ()
+        {
+            return stats().missCount();
+        }
+
+        // from SimpleCacheMXBean
+        public double getHitRate ()
+        {
+            return stats().hitRate();
+        }
+
+        // from SimpleCacheMXBean
+        public long getLoadSuccessCount ()
+        {
+            return stats().loadSuccessCount();
+        }
+
+        // from SimpleCacheMXBean
+        public long getLoadExceptionCount ()
+        {
+            return stats().loadExceptionCount();
+        }
+
+        // from SimpleCacheMXBean
+        public long getTotalLoadTime ()
+        {
+            return stats().totalLoadTime();
+        }
+
+        // from SimpleCacheMXBean
+        public double getAverageLoadPenalty ()
+        {
+            return stats().averageLoadPenalty();
+        }
+
+        // from SimpleCacheMXBean
+        public long getEvictionCount ()
+        {
+            return stats().evictionCount();
+        }
+
+        protected CacheStats stats ()
+        {
+            return _cache.stats();
+        }
+
+        protected final SimpleCache<?, ?> _cache;
+    }
+
+    /** The JMX domain of our beans. */
+    protected static final String DOMAIN = "com.threerings.sling";
+}
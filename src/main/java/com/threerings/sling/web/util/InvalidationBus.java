@@ -0,0 +1,45 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.util;
+
+/**
+ * Carries cache invalidations between the webapp nodes of a cluster, so that a change made on
+ * one node does not leave stale copies cached on the others. Caches are identified by name and
+ * invalidations are described by a message string whose meaning is up to the cache.
+ *
+ * @see SimpleCache#attach
+ */
+public interface InvalidationBus
+{
+    /**
+     * Receives the invalidations published for a cache.
+     */
+    interface Listener
+    {
+        /**
+         * Called when an invalidation is received.
+         * @param message identifies what was invalidated, or null if the whole cache was
+         */
+        void invalidated (String message);
+    }
+
+    /**
+     * Publishes an invalidation of the named cache. It is delivered to the cache's listeners on
+     * this node and on the other nodes, apart from the given source listener.
+     * @param message identifies what was invalidated, or null if the whole cache was
+     */
+    void publish (String cache, String message, Listener source);
+
+    /**
+     * Registers a listener for the invalidations of the named cache.
+     */
+    void subscribe (String cache, Listener listener);
+
+    /**
+     * Stops delivering invalidations from other nodes and releases any resources the bus holds.
+     * Called once by whatever created the bus, after all of the caches attached to it are done
+     * with it.
+     */
+    void shutdown ();
+}
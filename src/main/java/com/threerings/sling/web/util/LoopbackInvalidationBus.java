@@ -0,0 +1,55 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.util;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * An invalidation bus that only delivers to the listeners in this JVM, as they are published.
+ * Suitable for a single node, or for exercising several caches that stand in for nodes in tests.
+ */
+public class LoopbackInvalidationBus
+    implements InvalidationBus
+{
+    // from InvalidationBus
+    public void publish (String cache, String message, Listener source)
+    {
+        deliver(cache, message, source);
+    }
+
+    // from InvalidationBus
+    public void subscribe (String cache, Listener listener)
+    {
+        _listeners.put(cache, listener);
+    }
+
+    // from InvalidationBus
+    public void shutdown ()
+    {
+        // nothing doing
+    }
+
+    /**
+     * Delivers an invalidation to the listeners of the named cache, apart from the given source.
+     */
+    protected void deliver (String cache, String message, Listener source)
+    {
+        ImmutableList<Listener> listeners;
+        synchronized (_listeners) {
+            listeners = ImmutableList.copyOf(_listeners.get(cache));
+        }
+        for (Listener listener : listeners) {
+            if (listener != source) {
+                listener.invalidated(message);
+            }
+        }
+    }
+
+    /** The listeners of each cache. */
+    protected SetMultimap<String, Listener> _listeners =
+        Multimaps.synchronizedSetMultimap(HashMultimap.<String, Listener>create());
+}
@@ -3,13 +3,21 @@
 
 package com.threerings.sling.web.util;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Optional;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 
 import com.threerings.sling.web.client.SlingException;
 
@@ -17,26 +25,155 @@ import com.threerings.sling.web.client.SlingException;
  * A simple cache for keeping data from sling repos close to hand. Each item in the cache is
  * allowed to live for a number of milliseconds given on construction. Items are automatically
  * removed after they have been around for that long. This uses a Cache internally so is
- * threadsafe, but values are wrapped so they may be null.
+ * threadsafe, but values are wrapped so they may be null. The cache may also be bounded,
+ * refreshed ahead of expiry and made to record statistics, see {@link Options}.
+ *
+ * <p>A cache may be attached to an {@link InvalidationBus}, in which case the entries it
+ * removes are also removed from the caches of the same name on other nodes.</p>
  *
  * @param <K> the unique id for a cache datum
  * @param <V> the type of cache data
  */
 public abstract class SimpleCache<K, V>
 {
+    /**
+     * Options for the construction of a simple cache, beyond the time to live of its entries.
+     * Each option is off unless set. See {@link SimpleCache#options}.
+     */
+    public static class Options
+    {
+        /**
+         * Limits the cache to the given number of entries, evicting the least recently used
+         * entries to make room. May not be combined with {@link #maximumWeight}.
+         */
+        public Options maximumSize (long size)
+        {
+            _maximumSize = size;
+            return this;
+        }
+
+        /**
+         * Limits the total weight of the cache's entries to the given weight, evicting the least
+         * recently used entries to make room. The weight of each entry is given by
+         * {@link SimpleCache#weigh}.
+         */
+        public Options maximumWeight (long weight)
+        {
+            _maximumWeight = weight;
+            return this;
+        }
+
+        /**
+         * Recomputes entries that are read once the given number of milliseconds have passed
+         * since they were computed, on the given executor. The old value is returned until the
+         * new one is ready, so readers do not wait for a refresh. This should be less than the
+         * time to live, otherwise entries expire before they can be refreshed.
+         */
+        public Options refreshAfterWrite (long millis, Executor executor)
+        {
+            _refreshMillis = millis;
+            _refreshExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Records hits, misses and load times, made available by {@link SimpleCache#stats}.
+         */
+        public Options recordStats ()
+        {
+            _recordStats = true;
+            return this;
+        }
+
+        protected Options (long ttlMillis)
+        {
+            _ttlMillis = ttlMillis;
+        }
+
+        protected long _ttlMillis;
+        protected long _maximumSize = -1, _maximumWeight = -1, _refreshMillis = -1;
+        protected Executor _refreshExecutor;
+        protected boolean _recordStats;
+    }
+
+    /**
+     * Creates options for a cache whose entries live for the given number of milliseconds.
+     */
+    public static Options options (long ttlMillis)
+    {
+        return new Options(ttlMillis);
+    }
+
     /**
      * Creatse a new simple cache with the given time to live.
      * @param ttlMillis milliseconds after which an entry is considered old and should be removed
      */
     public SimpleCache (long ttlMillis)
     {
-        _cache = CacheBuilder.newBuilder()
-            .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        this(options(ttlMillis));
+    }
+
+    /**
+     * Creates a new simple cache with the given options.
+     */
+    public SimpleCache (Options options)
+    {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+            .expireAfterWrite(options._ttlMillis, TimeUnit.MILLISECONDS);
+        if (options._maximumSize >= 0) {
+            builder.maximumSize(options._maximumSize);
+        }
+        if (options._maximumWeight >= 0) {
+            builder.maximumWeight(options._maximumWeight).weigher(new Weigher<K, Optional<V>>() {
+                public int weigh (K key, Optional<V> value) {
+                    return value.isPresent() ? SimpleCache.this.weigh(key, value.get()) : 0;
+                }
+            });
+        }
+        if (options._refreshMillis >= 0) {
+            builder.refreshAfterWrite(options._refreshMillis, TimeUnit.MILLISECONDS);
+        }
+        if (options._recordStats) {
+            builder.recordStats();
+        }
+
+        final Executor refreshExecutor = options._refreshExecutor;
+        _cache = builder
+            .removalListener(new RemovalListener<K, Optional<V>>() {
+                public void onRemoval (RemovalNotification<K, Optional<V>> removal) {
+                    // replaced values are included, as are loaded values that were discarded
+                    // because the entry changed while they were loading
+                    if (removal.getValue() != null && removal.getValue().isPresent()) {
+                        removed(removal.getKey(), removal.getValue().get());
+                    }
+                }
+            })
             .build(new CacheLoader<K, Optional<V>>() {
                 public Optional<V> load (K key)
                     throws SlingException
                 {
-                    return Optional.fromNullable(compute(key));
+                    V value = compute(key);
+                    if (value != null) {
+                        added(key, value);
+                    }
+                    return Optional.fromNullable(value);
+                }
+
+                @Override public ListenableFuture<Optional<V>> reload (
+                    final K key, Optional<V> oldValue)
+                    throws Exception
+                {
+                    if (refreshExecutor == null) {
+                        return super.reload(key, oldValue);
+                    }
+                    ListenableFutureTask<Optional<V>> task = ListenableFutureTask.create(
+                        new Callable<Optional<V>>() {
+                            public Optional<V> call () throws SlingException {
+                                return load(key);
+                            }
+                        });
+                    refreshExecutor.execute(task);
+                    return task;
                 }
             });
     }
@@ -66,9 +203,37 @@ public abstract class SimpleCache<K, V>
      */
     public void put (K key, V value)
     {
+        if (value != null) {
+            added(key, value);
+        }
         _cache.put(key, Optional.fromNullable(value));
     }
 
+    /**
+     * Gets the cache value corresponding to the given key, or null if there is no entry for it
+     * or its value is null.
+     */
+    public V getIfPresent (K key)
+    {
+        Optional<V> value = _cache.getIfPresent(key);
+        return (value == null) ? null : value.orNull();
+    }
+
+    /**
+     * Replaces the value of the entry for the given key, provided its value is still the given
+     * old one. Returns false and leaves the entry alone if it is not. This allows cache values to
+     * be treated as immutable, with changes made to a copy that then replaces the original.
+     */
+    public boolean replace (K key, V oldValue, V newValue)
+    {
+        added(key, newValue);
+        if (_cache.asMap().replace(key, Optional.of(oldValue), Optional.of(newValue))) {
+            return true;
+        }
+        removed(key, newValue); // it never made it into the cache
+        return false;
+    }
+
     /**
      * Gets an iterable containing all non-null values in the cache.
      */
@@ -78,19 +243,50 @@ public abstract class SimpleCache<K, V>
     }
 
     /**
-     * Removes all items from the cache.
+     * Removes all items from the cache, here and on other nodes.
      */
     public void clear ()
     {
         _cache.invalidateAll();
+        publish(null);
     }
 
     /**
-     * Removes the cache entry corresponding to the given key.
+     * Removes the cache entry corresponding to the given key, here and on other nodes.
      */
     public void remove (K key)
     {
         _cache.invalidate(key);
+        publish(toMessage(key));
+    }
+
+    /**
+     * Returns the number of entries in the cache, which may include expired entries that have not
+     * been cleaned up yet.
+     */
+    public long size ()
+    {
+        return _cache.size();
+    }
+
+    /**
+     * Returns the hit, miss and load statistics of the cache. These are all zero unless the cache
+     * was created with {@link Options#recordStats}.
+     */
+    public CacheStats stats ()
+    {
+        return _cache.stats();
+    }
+
+    /**
+     * Shares this cache's removals with the caches of the same name on other nodes, via the
+     * given bus. Should be called once, before the cache is used.
+     */
+    public void attach (InvalidationBus bus, String name)
+    {
+        _bus = bus;
+        _name = name;
+        bus.subscribe(name, _listener);
     }
 
     /**
@@ -100,5 +296,106 @@ public abstract class SimpleCache<K, V>
     protected abstract V compute (K key)
         throws SlingException;
 
+    /**
+     * Called when a non-null value is computed, put or replaced for the given key, before it is
+     * added to the cache. Each value passed here is later passed to {@link #removed} exactly
+     * once. Does nothing by default.
+     */
+    protected void added (K key, V value)
+    {
+    }
+
+    /**
+     * Returns the weight of the given non-null value, for caches created with
+     * {@link Options#maximumWeight}. Returns 1 by default.
+     */
+    protected int weigh (K key, V value)
+    {
+        return 1;
+    }
+
+    /**
+     * Called when a non-null value passed to {@link #added} leaves the cache for any reason,
+     * including being replaced by another value for the same key, or is discarded without
+     * entering it. The new value, if any, has already been passed to {@link #added}, so the
+     * two calls may arrive in either order. Does nothing by default.
+     */
+    protected void removed (K key, V value)
+    {
+    }
+
+    /**
+     * Removes the cache entry corresponding to the given key on this node only.
+     */
+    protected void evict (K key)
+    {
+        _cache.invalidate(key);
+    }
+
+    /**
+     * Publishes an invalidation of this cache to other nodes, if it is attached to a bus.
+     * @param message identifies what was invalidated, or null if the whole cache was
+     */
+    protected void publish (String message)
+    {
+        if (_bus != null) {
+            _bus.publish(_name, message, _listener);
+        }
+    }
+
+    /**
+     * Returns the message published to other nodes when the entry for the given key is removed.
+     * Returns the string form of the key by default. Caches whose keys must not be shared, such
+     * as session tokens, should return something else that identifies the key, such as a hash.
+     */
+    protected String toMessage (K key)
+    {
+        return String.valueOf(key);
+    }
+
+    /**
+     * Called when another node publishes an invalidation of this cache. By default, clears the
+     * cache for a null message and otherwise evicts the entry whose key has the message as its
+     * {@link #toMessage} form.
+     */
+    protected void invalidated (String message)
+    {
+        if (message == null) {
+            _cache.invalidateAll();
+            return;
+        }
+        K key = parseKey(message);
+        if (key != null) {
+            _cache.invalidate(key);
+            return;
+        }
+        for (K cached : _cache.asMap().keySet()) {
+            if (message.equals(toMessage(cached))) {
+                _cache.invalidate(cached);
+            }
+        }
+    }
+
+    /**
+     * Returns the key whose {@link #toMessage} form is given, or null if it cannot be determined
+     * without searching the cache. Caches that are attached to a bus and whose messages are the
+     * string forms of keys that are not strings should override this to avoid the search.
+     */
+    protected K parseKey (String key)
+    {
+        return null;
+    }
+
     private final LoadingCache<K, Optional<V>> _cache;
+
+    /** Receives the invalidations published by other nodes. */
+    private final InvalidationBus.Listener _listener = new InvalidationBus.Listener() {
+        public void invalidated (String message) {
+            SimpleCache.this.invalidated(message);
+        }
+    };
+
+    /** The bus we are attached to, if any, and our name on it. */
+    private InvalidationBus _bus;
+    private String _name;
 }
@@ -3,16 +3,22 @@
 
 package com.threerings.slink.client;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -42,11 +48,15 @@ import static com.threerings.slink.Log.log;
  * the means of detecting game servers and logging in. <p>The properties used are:</p><ul>
  *     <li><em>clustered</em>:
  *         If set, then the {@link NodeRepository} singleton will be polled for a list
- *         of servers. When one server goes down or login fails, the least recently one
+ *         of servers. When one server goes down or login fails, the one that has failed least
  *         will be tried. If not set, then a single server will be used.</li>
  *     <li><em>game_server</em>, <em>game_port</em>:
  *         The name and port number of the single server to use when <em>clustered</em> is not set.
  *         </li>
+ *     <li><em>pool_size</em>:
+ *         When <em>clustered</em> is set, the number of servers to stay connected to at once,
+ *         one connection each. Service calls are spread over the connections that are logged on,
+ *         so losing one server does not interrupt them. Defaults to 1.</li>
  *     <li><em>shared_secret</em>:
  *         The value to use for authentication. This must match the server's copy. See
  *         {@link com.threerings.presents.net.ServiceCreds ServiceCreds}</li></ul>
@@ -90,62 +100,39 @@ public class SlinkLoginManager
 
         _sharedSecret = properties.getProperty("shared_secret");
 
-        String host = System.getProperty("hostname");
-        if (StringUtil.isBlank(host)) {
+        _hostname = System.getProperty("hostname");
+        if (StringUtil.isBlank(_hostname)) {
             log.warning("Hostname is not set");
-            host = "localhost";
+            _hostname = "localhost";
         }
 
-        _client = new Client(new SlinkCreds(host, _sharedSecret), _eventQueue) {
-            @Override protected Communicator createCommunicator () {
-                // We don't want the ClientCommunicator since it write to java prefs, which
-                // normally generates errors on the server due to file perms
-                return new BlockingCommunicator(this);
-            }
-        };
-
-        _client.addClientObserver(new ClientAdapter() {
-            GameHost toHost (Client client) {
-                return new GameHost(client.getHostname(), client.getPorts()[0]);
-            }
-            @Override public void clientDidLogoff (final Client client) {
-                _invokerQueue.postRunnable(new Runnable() {
-                    @Override public void run () {
-                        didLogoff(toHost(client));
-                    }
-
-                    @Override public String toString () {
-                        return "Processing logoff of " + toHost(client);
-                    }
-                });
-            }
-
-            @Override public void clientDidLogon (Client client) {
-                SlinkLoginManager.this.didLogon(toHost(client));
-            }
-
-            @Override public void clientFailedToLogon (Client client, Exception cause) {
-                clientDidLogoff(client); // we don't distinguish between failures and logoffs
-            }
-        });
-
-        _client.addServiceGroup(SlinkCodes.SLINK_GROUP);
+        int poolSize = Boolean.valueOf(properties.getProperty("clustered")) ?
+            Math.max(1, Integer.valueOf(properties.getProperty("pool_size", "1"))) : 1;
+        for (int ii = 0; ii < poolSize; ii++) {
+            _connections.add(new Connection());
+        }
     }
 
     /**
-     * Starts the login process. This may block while fetching server information from the
-     * database.
+     * Starts the login process. Server information is fetched from the database on the invoker
+     * queue.
      */
     public void init ()
     {
         log.info("Starting SlinkLoginManager");
         _eventQueue.start();
         _invokerQueue.start();
-        doLogin();
+        for (final Connection conn : _connections) {
+            _invokerQueue.postRunnable(new Runnable() {
+                @Override public void run () {
+                    doLogin(conn);
+                }
+            });
+        }
     }
 
     /**
-     * Shuts down the login manager. Logs out the client if it is currently logged in and stops
+     * Shuts down the login manager. Logs out the clients that are currently logged in and stops
      * all further attempts.
      * TODO: this is not being called in jetty on my local machine (Windows) when I ctrl-C
      * verify this is not an issue upstream
@@ -155,9 +142,13 @@ public class SlinkLoginManager
         _shuttingDown = true;
 
         log.info("Stopping SlinkLoginManager");
-        if (_client != null && _client.isActive()) {
-            _client.logoff(false);
-            while (_client.isActive()) {
+        for (Connection conn : _connections) {
+            if (conn.client.isActive()) {
+                conn.client.logoff(false);
+            }
+        }
+        for (Connection conn : _connections) {
+            while (conn.client.isActive()) {
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
@@ -181,15 +172,31 @@ public class SlinkLoginManager
     }
 
     /**
-     * Gets the client.
+     * Gets a client on which to make a service call. Calls are spread over the clients that are
+     * logged on, in turn. If none is logged on, one that is not is returned.
      */
     public Client getClient ()
     {
-        return _client;
+        int start = _next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int ii = 0, nn = _connections.size(); ii < nn; ii++) {
+            Client client = _connections.get((start + ii) % nn).client;
+            if (client.isLoggedOn()) {
+                return client;
+            }
+        }
+        return _connections.get(0).client;
     }
 
     protected void updateGameHosts ()
     {
+        // the list rarely changes, so only reload it now and then, at a randomized time so that
+        // the webapps coming back after a restart don't all load it at once
+        long now = System.currentTimeMillis();
+        if (!_hostInfo.isEmpty() && now < _hostsExpire) {
+            return;
+        }
+        _hostsExpire = now + jitter(HOST_REFRESH_INTERVAL);
+
         // get the new list from the application
         Set<GameHost> hosts = Sets.newHashSet(_hostRepo.getServers());
 
@@ -202,62 +209,189 @@ public class SlinkLoginManager
         }
     }
 
-    protected void doLogin ()
+    protected void doLogin (final Connection conn)
     {
         if (_shuttingDown) {
             return;
         }
 
-        Preconditions.checkArgument(!_client.isActive());
+        Preconditions.checkArgument(!conn.client.isActive());
 
         updateGameHosts();
 
-        if (_hostInfo.isEmpty()) {
-            log.info("No game hosts available", "retry", NODE_REFRESH_WAIT_TIME);
-            new Interval(_invokerQueue) {
-                @Override public void expired () {
-                     doLogin();
-                 }
-            }.schedule(NODE_REFRESH_WAIT_TIME);
+        // each connection uses a different host, since they all log on with the same credentials
+        Set<GameHost> inUse = Sets.newHashSet();
+        for (Connection other : _connections) {
+            if (other != conn && other.host != null) {
+                inUse.add(other.host);
+            }
+        }
+        // also skip hosts that are backing off after failures
+        long now = System.currentTimeMillis(), nextRetry = Long.MAX_VALUE;
+        List<GameHostInfo> available = Lists.newArrayList();
+        for (GameHostInfo info : _hostInfo.values()) {
+            if (inUse.contains(info.host)) {
+                continue;
+            } else if (info.isBackingOff(now)) {
+                nextRetry = Math.min(nextRetry, info.retryAt);
+            } else {
+                available.add(info);
+            }
+        }
+
+        if (available.isEmpty()) {
+            conn.host = null;
+            long delay = (nextRetry == Long.MAX_VALUE) ?
+                jitter(NODE_REFRESH_WAIT_TIME) : nextRetry - now;
+            log.info("No game hosts available", "retry", delay);
+            scheduleLogin(conn, delay);
+            return;
+        }
+
+        GameHostInfo info = Ordering.natural().min(available);
+        conn.host = info.host;
+
+        // a full logon is slow to fail, so first check that the host is accepting connections
+        if (!probe(info.host)) {
+            info.noteFailure(now, _rando);
+            log.info("Game host is not accepting connections", "host", info.host,
+                "failures", info.failures);
+            scheduleLogin(conn, jitter(INITIAL_BACKOFF));
             return;
         }
 
-        GameHostInfo info = Ordering.natural().min(_hostInfo.values());
         log.info("Attempting login to game host", "host", info.host);
-        _client.setServer(info.host.name, new int[] {info.host.port});
-        _client.logon();
+        conn.client.setServer(info.host.name, new int[] {info.host.port});
+        conn.client.logon();
     }
 
     protected void didLogon (GameHost host)
     {
         log.info("Connection to game established", "host", host);
 
-        // clear all recent failures
-        for (GameHostInfo info : _hostInfo.values()) {
+        // clear the host's recent failures
+        GameHostInfo info = _hostInfo.get(host);
+        if (info != null) {
             info.failures = 0;
+            info.retryAt = 0;
         }
     }
 
-    protected void didLogoff (GameHost host)
+    protected void didLogoff (final Connection conn)
     {
         if (_shuttingDown) {
             return;
         }
 
-        GameHostInfo info = _hostInfo.get(host);
+        GameHostInfo info = _hostInfo.get(conn.host);
         if (info == null) {
-            log.warning("Connection from unrecognized host", "host", host);
+            log.warning("Connection from unrecognized host", "host", conn.host);
         } else {
-            info.failures++;
+            info.noteFailure(System.currentTimeMillis(), _rando);
         }
 
-        log.info("Game connection failure", "host", host, "retry", LOGOFF_WAIT_TIME);
+        // try again shortly; the failed host will be skipped until its backoff is over, so this
+        // moves straight on to another host if there is one
+        long delay = jitter(INITIAL_BACKOFF);
+        log.info("Game connection failure", "host", conn.host, "retry", delay);
+        scheduleLogin(conn, delay);
+    }
 
+    protected void scheduleLogin (final Connection conn, long delay)
+    {
         new Interval(_invokerQueue) {
             @Override public void expired () {
-                doLogin();
+                doLogin(conn);
+            }
+        }.schedule(Math.max(delay, 1));
+    }
+
+    /**
+     * Checks whether the given host is accepting connections on its port.
+     */
+    protected boolean probe (GameHost host)
+    {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host.name, host.port), (int)PROBE_TIMEOUT);
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // nothing to do
             }
-        }.schedule(LOGOFF_WAIT_TIME);
+        }
+    }
+
+    /**
+     * Returns a random time between half and all of the given time.
+     */
+    protected long jitter (long time)
+    {
+        return jitter(time, _rando);
+    }
+
+    protected static long jitter (long time, Random rando)
+    {
+        return time / 2 + (long)(rando.nextDouble() * (time / 2));
+    }
+
+    /**
+     * One of our clients and the host it is logged on or trying to log on to.
+     */
+    protected class Connection
+    {
+        /** The client. */
+        public final Client client;
+
+        /** The host the client is using, or null if there was none available for it. Only
+         * accessed on the invoker queue. */
+        public GameHost host;
+
+        /**
+         * Creates a new connection, initially logged off.
+         */
+        public Connection ()
+        {
+            client = new Client(new SlinkCreds(_hostname, _sharedSecret), _eventQueue) {
+                @Override protected Communicator createCommunicator () {
+                    // We don't want the ClientCommunicator since it write to java prefs, which
+                    // normally generates errors on the server due to file perms
+                    return new BlockingCommunicator(this);
+                }
+            };
+
+            client.addClientObserver(new ClientAdapter() {
+                @Override public void clientDidLogoff (Client client) {
+                    _invokerQueue.postRunnable(new Runnable() {
+                        @Override public void run () {
+                            didLogoff(Connection.this);
+                        }
+
+                        @Override public String toString () {
+                            return "Processing logoff of " + host;
+                        }
+                    });
+                }
+
+                @Override public void clientDidLogon (Client client) {
+                    _invokerQueue.postRunnable(new Runnable() {
+                        @Override public void run () {
+                            didLogon(host);
+                        }
+                    });
+                }
+
+                @Override public void clientFailedToLogon (Client client, Exception cause) {
+                    clientDidLogoff(client); // we don't distinguish between failures and logoffs
+                }
+            });
+
+            client.addServiceGroup(SlinkCodes.SLINK_GROUP);
+        }
     }
 
     /**
@@ -311,7 +445,10 @@ public class SlinkLoginManager
     }
 
     /**
-     * Tracks some information about a game host.
+     * Tracks some information about a game host. This acts as a circuit breaker: after a failure,
+     * the host is skipped until its backoff time has passed, then a single connection may try it
+     * again. Success clears the failures; another failure doubles the backoff, up to {@link
+     * #MAX_BACKOFF}.
      */
     protected static class GameHostInfo
         implements Comparable<GameHostInfo>
@@ -319,9 +456,12 @@ public class SlinkLoginManager
         /** The game host. */
         public final GameHost host;
 
-        /** How many recent failures have we seen connecting to this host? */
+        /** How many failures have we seen connecting to this host since it last worked? */
         public int failures;
 
+        /** When the host may be tried again, if it has failed. */
+        public long retryAt;
+
         /**
          * Creates a new game host info for the given host
          */
@@ -330,12 +470,29 @@ public class SlinkLoginManager
             this.host = host;
         }
 
+        /**
+         * Returns whether the host is waiting out a backoff at the given time.
+         */
+        public boolean isBackingOff (long now)
+        {
+            return failures > 0 && now < retryAt;
+        }
+
+        /**
+         * Notes a failure of the host at the given time and starts its backoff.
+         */
+        public void noteFailure (long now, Random rando)
+        {
+            failures++;
+            long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failures - 1, 16));
+            retryAt = now + jitter(backoff, rando);
+        }
+
         // from Comparable
         public int compareTo (GameHostInfo that)
         {
-            // allow up to 3 failures before ordering is impacted, and quantize by 3 thereafter
             return ComparisonChain.start()
-                .compare(this.failures / 3, that.failures / 3)
+                .compare(this.failures, that.failures)
                 .compare(this.host.name, that.host.name)
                 .compare(this.host.port, that.host.port)
                 .result();
@@ -354,11 +511,26 @@ public class SlinkLoginManager
     protected Map<GameHost, GameHostInfo> _hostInfo = Maps.newHashMap();
     protected GameHostRepo _hostRepo;
     protected String _sharedSecret;
+    protected String _hostname;
     protected BasicRunQueue _eventQueue = new BasicRunQueue("slinkEventQueue");
     protected BasicRunQueue _invokerQueue = new BasicRunQueue("slinkDBQueue");
-    protected Client _client;
-    protected boolean _shuttingDown;
+    protected List<Connection> _connections = Lists.newArrayList();
+    protected AtomicInteger _next = new AtomicInteger();
+    protected volatile boolean _shuttingDown;
+    protected long _hostsExpire;
+    protected Random _rando = new Random();
+
+    /** The backoff after a host's first failure. This doubles with each further failure. */
+    protected static final long INITIAL_BACKOFF = 2*1000;
+
+    /** The longest backoff after a host's failures. */
+    protected static final long MAX_BACKOFF = 60*1000;
+
+    /** How long we wait for a host to accept a connection when probing it. */
+    protected static final long PROBE_TIMEOUT = 2*1000;
+
+    /** The longest we go without reloading the list of hosts. */
+    protected static final long HOST_REFRESH_INTERVAL = 5*60*1000;
 
-    protected static final long LOGOFF_WAIT_TIME = 60*1000;
     protected static final long NODE_REFRESH_WAIT_TIME = 60*1000;
 }
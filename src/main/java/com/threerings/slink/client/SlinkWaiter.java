@@ -3,9 +3,18 @@
 
 package com.threerings.slink.client;
 
-import com.samskivert.util.ServiceWaiter.TimeoutException;
-import com.samskivert.util.ServiceWaiter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
+import com.threerings.presents.client.Client;
 import com.threerings.presents.client.InvocationService.ConfirmListener;
 import com.threerings.presents.client.InvocationService.ResultListener;
 
@@ -13,11 +22,23 @@ import com.threerings.sling.web.client.SlingException;
 
 /**
  * Bridges the gap between a game service for implementing support methods and the jetty servlet
- * that returns synchronous results. Maybe someday jetty will be async or will support something
- * like fibers.
+ * that returns synchronous results. Calls may either be waited for one at a time with {@link
+ * #waitForResponse}, or made with {@link #submit} so that several can be in flight at once and
+ * waited for together with {@link #await}.
  */
 public class SlinkWaiter<R>
 {
+    /**
+     * Makes a slink service call. The call obtains its service with {@link #getService} and
+     * passes the service method the waiter's {@link #getResultListener} or {@link
+     * #getConfirmListener}.
+     */
+    public interface Call<R>
+    {
+        void invoke (SlinkWaiter<R> waiter)
+            throws SlingException;
+    }
+
     /**
      * Simple factory to help avoid double generic argument listing in the caller.
      */
@@ -26,6 +47,102 @@ public class SlinkWaiter<R>
         return new SlinkWaiter<T>(mgr);
     }
 
+    /**
+     * Makes the given call and returns a future for its result without waiting for it. The
+     * future fails with a {@link SlingException} if the call fails or does not complete within
+     * the given number of milliseconds.
+     */
+    public static <T> CompletableFuture<T> submit (
+        SlinkLoginManager mgr, long timeoutMillis, Call<T> call)
+    {
+        SlinkWaiter<T> waiter = create(mgr);
+        try {
+            call.invoke(waiter);
+        } catch (SlingException e) {
+            waiter._future.completeExceptionally(e);
+            return waiter._future;
+        }
+        final CompletableFuture<T> future = waiter._future;
+        final ScheduledFuture<?> timeout = _timer.schedule(new Runnable() {
+            public void run () {
+                future.completeExceptionally(new SlingException("m.game_link_rpc_failed"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept (T result, Throwable failure) {
+                timeout.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Makes the given call and returns a future for its result, with the default timeout.
+     */
+    public static <T> CompletableFuture<T> submit (SlinkLoginManager mgr, Call<T> call)
+    {
+        return submit(mgr, DEFAULT_TIMEOUT, call);
+    }
+
+    /**
+     * Waits for all of the given futures to complete, for up to the default timeout in all.
+     * @throws SlingException the failure of the first of the futures to fail, if any did.
+     */
+    public static void await (CompletableFuture<?>... futures)
+        throws SlingException
+    {
+        await(DEFAULT_TIMEOUT, futures);
+    }
+
+    /**
+     * Waits for all of the given futures to complete, for up to the given number of milliseconds
+     * in all.
+     * @throws SlingException the failure of the first of the futures to fail, if any did, or
+     * m.game_link_rpc_failed if they take too long.
+     */
+    public static void await (long timeoutMillis, CompletableFuture<?>... futures)
+        throws SlingException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (CompletableFuture<?> future : futures) {
+            await(future, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Waits for the given future to complete, for up to the default timeout, and returns its
+     * result.
+     * @throws SlingException if the future failed.
+     */
+    public static <T> T await (CompletableFuture<T> future)
+        throws SlingException
+    {
+        return await(future, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Waits for the given future to complete, for up to the given number of milliseconds, and
+     * returns its result.
+     * @throws SlingException if the future failed, or m.game_link_rpc_failed if it takes too
+     * long.
+     */
+    public static <T> T await (CompletableFuture<T> future, long timeoutMillis)
+        throws SlingException
+    {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SlingException("m.game_link_rpc_failed");
+        } catch (ExecutionException e) {
+            throw toSlingException(e.getCause());
+        } catch (CompletionException e) {
+            throw toSlingException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SlingException("m.game_link_rpc_failed");
+        }
+    }
+
     /**
      * Creates a new waiter.
      */
@@ -41,11 +158,12 @@ public class SlinkWaiter<R>
     public <T> T getService (Class<T> sclass)
         throws SlingException
     {
-        if (!_mgr.getClient().isLoggedOn()) {
+        Client client = _mgr.getClient();
+        if (!client.isLoggedOn()) {
             throw new SlingException("m.game_link_down");
         }
         try {
-            return _mgr.getClient().requireService(sclass);
+            return client.requireService(sclass);
         } catch (RuntimeException e) {
             throw new SlingException("m.internal_error");
         }
@@ -60,11 +178,11 @@ public class SlinkWaiter<R>
             @Override public void requestProcessed (Object result) {
                 @SuppressWarnings("unchecked")
                 R casted = (R)result;
-                _waiter.postSuccess(casted);
+                _future.complete(casted);
             }
 
             @Override public void requestFailed (String cause) {
-                _waiter.postFailure(new Exception(cause));
+                _future.completeExceptionally(new SlingException(cause));
             }
         };
     }
@@ -76,11 +194,11 @@ public class SlinkWaiter<R>
     {
         return new ConfirmListener() {
             @Override public void requestProcessed () {
-                _waiter.postSuccess(null);
+                _future.complete(null);
             }
 
             @Override public void requestFailed (String cause) {
-                _waiter.postFailure(new Exception(cause));
+                _future.completeExceptionally(new SlingException(cause));
             }
         };
     }
@@ -92,17 +210,39 @@ public class SlinkWaiter<R>
     public R waitForResponse ()
         throws SlingException
     {
-        _waiter = new ServiceWaiter<R>();
         try {
-            if (!_waiter.waitForResponse()) {
-                throw new SlingException(_waiter.getError().getMessage());
-            }
+            return _future.get(DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (TimeoutException e) {
             throw new SlingException("m.game_link_rpc_failed");
+        } catch (ExecutionException e) {
+            throw toSlingException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SlingException("m.game_link_rpc_failed");
         }
-        return _waiter.getArgument();
+    }
+
+    protected static SlingException toSlingException (Throwable cause)
+    {
+        return (cause instanceof SlingException) ? (SlingException)cause :
+            new SlingException("m.internal_error");
     }
 
     protected SlinkLoginManager _mgr;
-    protected ServiceWaiter<R> _waiter;
+
+    /** Completed by our listeners when the service method responds. */
+    protected CompletableFuture<R> _future = new CompletableFuture<R>();
+
+    /** Fails submitted calls that take too long. */
+    protected static ScheduledExecutorService _timer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "SlinkWaiterTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** How long we wait for a service method to respond, unless told otherwise. */
+    protected static final long DEFAULT_TIMEOUT = 30 * 1000L;
 }
@@ -0,0 +1,229 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+import com.threerings.sling.server.index.EventIndex.Field;
+
+/**
+ * Tests that {@link EventIndex} recovers its contents from its snapshot and journal.
+ */
+public class EventIndexTest
+{
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void testLookup ()
+        throws IOException
+    {
+        EventIndex index = open();
+        index.add(1, 100, Field.SUBJECT, "Stolen sword");
+        index.add(2, 200, Field.SUBJECT, "Sword of the Ancients");
+        index.add(2, 200, Field.NOTE, "stolen by a pirate");
+
+        assertArrayEquals(new int[] { 1, 2 }, lookup(index, Field.SUBJECT, "sword"));
+        assertArrayEquals(new int[] { 1 }, lookup(index, Field.SUBJECT, "stolen", "sword"));
+        assertArrayEquals(new int[] { 2 }, lookup(index, Field.NOTE, "stolen"));
+        assertArrayEquals(new int[0], lookup(index, Field.SUBJECT, "pirate"));
+        assertEquals(200, index.getWatermark());
+        index.close();
+    }
+
+    @Test public void testReplay ()
+        throws IOException
+    {
+        EventIndex index = rebuilt();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.add(2, 200, Field.CHAT_HISTORY, "where is my ship");
+        index.close();
+
+        index = open();
+        assertTrue(index.isReady());
+        assertArrayEquals(new int[] { 1 }, lookup(index, Field.SUBJECT, "ship"));
+        assertArrayEquals(new int[] { 2 }, lookup(index, Field.CHAT_HISTORY, "ship"));
+        assertEquals(200, index.getWatermark());
+        index.close();
+    }
+
+    @Test public void testNoSnapshot ()
+        throws IOException
+    {
+        EventIndex index = open();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.close();
+
+        // the journal is replayed, but without a snapshot the index does not cover everything
+        index = open();
+        assertFalse(index.isReady());
+        assertArrayEquals(new int[] { 1 }, lookup(index, Field.SUBJECT, "ship"));
+        index.close();
+    }
+
+    @Test public void testTruncatedJournal ()
+        throws IOException
+    {
+        EventIndex index = rebuilt();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.flush();
+        long complete = journal().length();
+        index.add(2, 200, Field.SUBJECT, "sunken ship");
+        index.close();
+
+        // tear the last record, as a crash in the middle of writing it would
+        RandomAccessFile raf = new RandomAccessFile(journal(), "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        index = open();
+        assertTrue(index.isReady());
+        assertArrayEquals(new int[] { 1 }, lookup(index, Field.SUBJECT, "ship"));
+        assertEquals(100, index.getWatermark());
+        assertEquals(complete, journal().length());
+
+        // the torn record is re-added, and new records follow the last complete one
+        index.add(2, 200, Field.SUBJECT, "sunken ship");
+        index.close();
+        index = open();
+        assertArrayEquals(new int[] { 1, 2 }, lookup(index, Field.SUBJECT, "ship"));
+        index.close();
+    }
+
+    @Test public void testCorruptJournal ()
+        throws IOException
+    {
+        EventIndex index = rebuilt();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.flush();
+        long complete = journal().length();
+        index.add(2, 200, Field.SUBJECT, "sunken ship");
+        index.close();
+
+        // flip a byte in the last record so that its checksum fails
+        RandomAccessFile raf = new RandomAccessFile(journal(), "rw");
+        raf.seek(complete + 6);
+        int b = raf.read();
+        raf.seek(complete + 6);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        index = open();
+        assertArrayEquals(new int[] { 1 }, lookup(index, Field.SUBJECT, "ship"));
+        assertEquals(complete, journal().length());
+        index.close();
+    }
+
+    @Test public void testCorruptSnapshot ()
+        throws IOException
+    {
+        EventIndex index = rebuilt();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.checkpoint();
+        index.close();
+
+        RandomAccessFile raf = new RandomAccessFile(new File(tmp.getRoot(), "events.idx"), "rw");
+        raf.seek(raf.length() - 1);
+        int b = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        index = open();
+        assertFalse(index.isReady());
+        assertArrayEquals(new int[0], lookup(index, Field.SUBJECT, "ship"));
+        index.close();
+    }
+
+    @Test public void testCheckpoint ()
+        throws IOException
+    {
+        EventIndex index = rebuilt();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.flush();
+        assertTrue(journal().length() > 0);
+        index.checkpoint();
+        assertEquals(0, journal().length());
+        index.add(2, 200, Field.SUBJECT, "sunken ship");
+        index.close();
+
+        index = open();
+        assertTrue(index.isReady());
+        assertArrayEquals(new int[] { 1, 2 }, lookup(index, Field.SUBJECT, "ship"));
+        assertEquals(200, index.getWatermark());
+        index.close();
+    }
+
+    @Test public void testRepeatedAdd ()
+        throws IOException
+    {
+        EventIndex index = rebuilt();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.flush();
+        long length = journal().length();
+
+        // text that is already indexed is not journaled again
+        index.add(1, 100, Field.SUBJECT, "Lost ship!");
+        index.flush();
+        assertEquals(length, journal().length());
+        index.close();
+    }
+
+    @Test public void testRebuild ()
+        throws IOException
+    {
+        EventIndex index = open();
+        index.add(1, 100, Field.SUBJECT, "lost ship");
+        index.startRebuild();
+        index.addRebuilt(2, 200, Field.SUBJECT, "sunken ship");
+        index.add(3, 300, Field.SUBJECT, "ship ahoy");
+        assertFalse(index.isReady());
+        index.finishRebuild();
+
+        // the rebuilt index has what was rebuilt and what was added meanwhile
+        assertTrue(index.isReady());
+        assertArrayEquals(new int[] { 2, 3 }, lookup(index, Field.SUBJECT, "ship"));
+        assertEquals(0, journal().length());
+        index.close();
+
+        index = open();
+        assertTrue(index.isReady());
+        assertArrayEquals(new int[] { 2, 3 }, lookup(index, Field.SUBJECT, "ship"));
+        index.close();
+    }
+
+    protected EventIndex open ()
+        throws IOException
+    {
+        return new EventIndex(tmp.getRoot());
+    }
+
+    /**
+     * Opens an empty index that is ready, as if it had been rebuilt from an empty database.
+     */
+    protected EventIndex rebuilt ()
+        throws IOException
+    {
+        EventIndex index = open();
+        index.startRebuild();
+        index.finishRebuild();
+        return index;
+    }
+
+    protected File journal ()
+    {
+        return new File(tmp.getRoot(), "events.log");
+    }
+
+    protected static int[] lookup (EventIndex index, Field field, String... words)
+    {
+        return index.lookup(field, Arrays.asList(words));
+    }
+}
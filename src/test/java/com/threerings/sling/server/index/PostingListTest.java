@@ -0,0 +1,119 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.server.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the encoding of {@link PostingList}.
+ */
+public class PostingListTest
+{
+    @Test public void testAppend ()
+    {
+        PostingList list = new PostingList();
+        assertEquals(0, list.size());
+        assertArrayEquals(new int[0], list.toArray());
+
+        // small and large gaps, the latter needing several bytes each
+        int[] ids = { 1, 2, 130, 20000, 3000000, Integer.MAX_VALUE };
+        for (int id : ids) {
+            assertTrue(list.add(id));
+        }
+        assertEquals(ids.length, list.size());
+        assertArrayEquals(ids, list.toArray());
+    }
+
+    @Test public void testOutOfOrder ()
+    {
+        PostingList list = new PostingList();
+        for (int id : new int[] { 50, 10, 300, 20, 1 }) {
+            assertTrue(list.add(id));
+        }
+        assertArrayEquals(new int[] { 1, 10, 20, 50, 300 }, list.toArray());
+
+        // re-encoding leaves the list able to append
+        assertTrue(list.add(301));
+        assertArrayEquals(new int[] { 1, 10, 20, 50, 300, 301 }, list.toArray());
+    }
+
+    @Test public void testDuplicates ()
+    {
+        PostingList list = new PostingList();
+        assertTrue(list.add(5));
+        assertTrue(list.add(9));
+        assertFalse(list.add(9));
+        assertFalse(list.add(5));
+        assertEquals(2, list.size());
+        assertArrayEquals(new int[] { 5, 9 }, list.toArray());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNonPositive ()
+    {
+        new PostingList().add(0);
+    }
+
+    @Test public void testReadWrite ()
+        throws IOException
+    {
+        PostingList list = new PostingList();
+        for (int id = 1; id < 5000; id += 7) {
+            list.add(id);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        list.write(new DataOutputStream(bout));
+        PostingList read = PostingList.read(
+            new DataInputStream(new ByteArrayInputStream(bout.toByteArray())), bout.size());
+        assertEquals(list.size(), read.size());
+        assertArrayEquals(list.toArray(), read.toArray());
+
+        // a read list appends after its last id
+        assertTrue(read.add(5000));
+        assertEquals(5000, read.toArray()[read.size() - 1]);
+    }
+
+    @Test(expected=IOException.class)
+    public void testCorrupt ()
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(10); // size
+        out.writeInt(100); // last
+        out.writeInt(3); // fewer bytes than ids
+        out.write(new byte[3]);
+        PostingList.read(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())),
+            bout.size());
+    }
+
+    @Test(expected=IOException.class)
+    public void testTooLong ()
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(Integer.MAX_VALUE / 5); // size
+        out.writeInt(100); // last
+        out.writeInt(Integer.MAX_VALUE - 8); // far more bytes than follow
+        PostingList.read(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())),
+            bout.size());
+    }
+
+    @Test public void testIntersect ()
+    {
+        assertArrayEquals(new int[] { 3, 7 },
+            PostingList.intersect(new int[] { 1, 3, 5, 7 }, new int[] { 2, 3, 7, 9 }));
+        assertArrayEquals(new int[0], PostingList.intersect(new int[] { 1, 2 }, new int[0]));
+        assertArrayEquals(new int[0],
+            PostingList.intersect(new int[] { 1, 2 }, new int[] { 3, 4 }));
+    }
+}
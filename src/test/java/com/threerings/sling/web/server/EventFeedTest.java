@@ -0,0 +1,257 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.threerings.sling.server.persist.EventChangeRecord;
+import com.threerings.sling.web.client.SlingService.EventUpdates;
+import com.threerings.sling.web.data.Event;
+
+/**
+ * Tests {@link EventFeed} against an in-memory event change table.
+ */
+public class EventFeedTest
+{
+    @Before public void createFeed ()
+    {
+        _feed = new TestFeed();
+    }
+
+    @Test public void testPoll ()
+    {
+        change(1, 10);
+        _feed.update();
+        assertEquals(1, _feed.poll(0).seq);
+
+        change(2, 20);
+        change(3, 10);
+        _feed.update();
+        EventUpdates updates = _feed.poll(1);
+        assertFalse(updates.reset);
+        assertEquals(3, updates.seq);
+
+        // each event is reported once, in its latest state
+        assertEquals(Lists.newArrayList(20, 10), eventIds(updates));
+        assertEquals("10 v2", updates.events.get(1).subject);
+
+        updates = _feed.poll(3);
+        assertEquals(3, updates.seq);
+        assertTrue(updates.events.isEmpty());
+    }
+
+    @Test public void testSharedPositions ()
+    {
+        // a feed starting up picks up recent history, so clients of other nodes carry on
+        for (int ii = 1; ii <= 5; ii++) {
+            change(ii, ii);
+        }
+        _feed.update();
+        EventUpdates updates = _feed.poll(3);
+        assertFalse(updates.reset);
+        assertEquals(Lists.newArrayList(4, 5), eventIds(updates));
+
+        // a client that saw a change this node has not loaded yet waits for more
+        updates = _feed.poll(7);
+        assertFalse(updates.reset);
+        assertEquals(7, updates.seq);
+        assertTrue(updates.events.isEmpty());
+    }
+
+    @Test public void testGap ()
+    {
+        change(1, 10);
+        _feed.update();
+
+        // change 2 is not yet committed when change 3 is
+        EventChangeRecord late = change(2, 20);
+        _table.remove(late);
+        change(3, 30);
+        _feed.update();
+        EventUpdates updates = _feed.poll(1);
+        assertEquals(1, updates.seq);
+        assertTrue(updates.events.isEmpty());
+
+        _table.add(1, late);
+        _feed.update();
+        updates = _feed.poll(1);
+        assertEquals(3, updates.seq);
+        assertEquals(Lists.newArrayList(20, 30), eventIds(updates));
+    }
+
+    @Test public void testRolledBack ()
+    {
+        change(1, 10);
+        _feed.update();
+        _table.remove(change(2, 20));
+        change(3, 30);
+        _feed.update();
+        assertEquals(1, _feed.poll(1).seq);
+
+        // once we stop waiting for the skipped change, the position moves past it
+        for (Map.Entry<Integer, Long> gap : _feed._gaps.entrySet()) {
+            gap.setValue(0L);
+        }
+        _feed.update();
+        EventUpdates updates = _feed.poll(1);
+        assertEquals(3, updates.seq);
+        assertEquals(Lists.newArrayList(30), eventIds(updates));
+    }
+
+    @Test public void testReset ()
+    {
+        change(1, 10);
+        _feed.update();
+        for (int ii = 2; ii <= EventFeed.MAX_CHANGES + 10; ii++) {
+            change(ii, ii);
+        }
+        _feed.update();
+
+        // the caller missed changes we no longer have
+        EventUpdates updates = _feed.poll(1);
+        assertTrue(updates.reset);
+        assertEquals(EventFeed.MAX_CHANGES + 10, updates.seq);
+        assertTrue(updates.events.isEmpty());
+    }
+
+    @Test public void testAwait ()
+    {
+        change(1, 10);
+        _feed.update();
+
+        final List<String> calls = Lists.newArrayList();
+        _feed.await(0, 1000, callback(calls, "current"));
+        _feed.await(1, 60000, callback(calls, "waiting"));
+        _feed.await(1, 0, callback(calls, "expired"));
+        assertEquals(Lists.newArrayList("current"), calls);
+
+        _feed.update();
+        assertEquals(Lists.newArrayList("current", "expired"), calls);
+
+        change(2, 20);
+        _feed.update();
+        assertEquals(Lists.newArrayList("current", "expired", "waiting"), calls);
+        assertTrue(_feed._waiters.isEmpty());
+    }
+
+    @Test public void testIdle ()
+    {
+        change(1, 10);
+        assertTrue(_feed.isUpdateDue(System.currentTimeMillis()));
+        _feed.update();
+
+        // with nobody waiting, the table is only read now and then
+        long now = System.currentTimeMillis();
+        assertFalse(_feed.isUpdateDue(now));
+        assertTrue(_feed.isUpdateDue(now + EventFeed.IDLE_POLL_INTERVAL));
+
+        // but it is read at every tick while someone waits
+        _feed.await(1, 60000, callback(Lists.<String>newArrayList(), "waiting"));
+        assertTrue(_feed.isUpdateDue(now));
+        change(2, 20);
+        _feed.update();
+        assertFalse(_feed.isUpdateDue(now));
+
+        // or while a skipped change may yet turn up
+        _table.remove(change(3, 30));
+        change(4, 40);
+        _feed.update();
+        assertTrue(_feed.isUpdateDue(now));
+    }
+
+    protected EventChangeRecord change (int changeId, int eventId)
+    {
+        EventChangeRecord rec = new EventChangeRecord();
+        rec.changeId = changeId;
+        rec.eventId = eventId;
+        _table.add(rec);
+        Integer version = _versions.get(eventId);
+        _versions.put(eventId, version == null ? 1 : version + 1);
+        return rec;
+    }
+
+    protected static Runnable callback (final List<String> calls, final String name)
+    {
+        return new Runnable() {
+            public void run () {
+                calls.add(name);
+            }
+        };
+    }
+
+    protected static List<Integer> eventIds (EventUpdates updates)
+    {
+        List<Integer> ids = Lists.newArrayList();
+        for (Event event : updates.events) {
+            ids.add(event.eventId);
+        }
+        return ids;
+    }
+
+    /**
+     * A feed that reads changes from {@link #_table} rather than the database.
+     */
+    protected class TestFeed extends EventFeed
+    {
+        public TestFeed ()
+        {
+            super(null, null);
+        }
+
+        @Override protected int getLastChangeId ()
+        {
+            int lastId = 0;
+            for (EventChangeRecord rec : _table) {
+                lastId = Math.max(lastId, rec.changeId);
+            }
+            return lastId;
+        }
+
+        @Override protected List<EventChangeRecord> loadChanges (int afterId, int limit)
+        {
+            List<EventChangeRecord> recs = Lists.newArrayList();
+            for (EventChangeRecord rec : _table) {
+                if (rec.changeId > afterId && recs.size() < limit) {
+                    recs.add(rec);
+                }
+            }
+            return recs;
+        }
+
+        @Override protected void purgeChanges (long before)
+        {
+            // nothing doing
+        }
+
+        @Override protected Collection<Event> loadEvents (Set<Integer> eventIds)
+        {
+            List<Event> events = Lists.newArrayList();
+            for (int eventId : eventIds) {
+                Event event = new Event();
+                event.eventId = eventId;
+                event.subject = eventId + " v" + _versions.get(eventId);
+                events.add(event);
+            }
+            return events;
+        }
+    }
+
+    protected TestFeed _feed;
+
+    /** The committed event changes, in id order. */
+    protected List<EventChangeRecord> _table = Lists.newArrayList();
+
+    /** The number of times each event has changed. */
+    protected Map<Integer, Integer> _versions = Maps.newHashMap();
+}
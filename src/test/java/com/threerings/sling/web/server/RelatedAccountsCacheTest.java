@@ -0,0 +1,119 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.server;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.sling.web.data.AccountName;
+import com.threerings.sling.web.data.MachineIdentity.AccountInfo;
+import com.threerings.sling.web.data.MachineIdentity;
+import com.threerings.sling.web.util.LoopbackInvalidationBus;
+
+/**
+ * Tests that {@link RelatedAccountsCache} keeps its entries and its index up to date.
+ */
+public class RelatedAccountsCacheTest
+{
+    @Test public void testUpdate ()
+        throws Exception
+    {
+        LoopbackInvalidationBus bus = new LoopbackInvalidationBus();
+        TestCache node1 = new TestCache(), node2 = new TestCache();
+        node1.attach(bus, "related");
+        node2.attach(bus, "related");
+        for (TestCache cache : new TestCache[] { node1, node2 }) {
+            cache.get(1);
+            cache.get(2);
+            cache.get(3);
+        }
+
+        // the entries containing the ident are updated here and evicted on the other node
+        List<MachineIdentity> before = node1.getIfPresent(1);
+        node1.updateIdent("shared", true, null);
+        assertTrue(find(node1.getIfPresent(1), "shared").tainted);
+        assertTrue(find(node1.getIfPresent(2), "shared").tainted);
+        assertFalse(find(node1.getIfPresent(3), "ident3").tainted);
+        assertFalse(find(before, "shared").tainted);
+        assertNull(node2.getIfPresent(1));
+        assertNull(node2.getIfPresent(2));
+        assertNotNull(node2.getIfPresent(3));
+
+        node1.updateAccount("user3", true);
+        assertTrue(find(node1.getIfPresent(3), "ident3").accounts.get(0).banned);
+        assertNull(node2.getIfPresent(3));
+    }
+
+    @Test public void testIndex ()
+        throws Exception
+    {
+        TestCache cache = new TestCache();
+        for (int ii = 0; ii < 10; ii++) {
+            cache.get(1);
+            cache.get(2);
+            cache.updateIdent("shared", ii % 2 == 0, null);
+            cache.updateAccount("user1", ii % 2 == 0);
+            cache.put(2, cache.compute(2));
+        }
+
+        // replaced values leave one set of index entries, which go when the entries do; user1 is
+        // in two idents of account 1 and one of account 2
+        assertEquals(2, cache._idents.get("shared").size());
+        assertEquals(1, cache._idents.get("ident1").size());
+        assertEquals(3, cache._accounts.get("user1").size());
+        cache.remove(1);
+        assertFalse(cache._idents.containsKey("ident1"));
+        assertEquals(1, cache._idents.get("shared").size());
+        cache.clear();
+        assertTrue(cache._idents.isEmpty());
+        assertTrue(cache._accounts.isEmpty());
+    }
+
+    protected static MachineIdentity find (List<MachineIdentity> idents, String machIdent)
+    {
+        for (MachineIdentity ident : idents) {
+            if (ident.machIdent.equals(machIdent)) {
+                return ident;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cache in which each account has its own ident, and accounts 1 and 2 share another.
+     */
+    protected static class TestCache extends RelatedAccountsCache
+    {
+        public TestCache ()
+        {
+            super(60 * 1000L);
+        }
+
+        @Override protected List<MachineIdentity> compute (Integer accountId)
+        {
+            List<MachineIdentity> idents = Lists.newArrayList();
+            idents.add(ident("ident" + accountId, "user" + accountId));
+            if (accountId < 3) {
+                idents.add(ident("shared", "user1", "user2"));
+            }
+            return idents;
+        }
+
+        protected static MachineIdentity ident (String machIdent, String... accountNames)
+        {
+            MachineIdentity ident = new MachineIdentity(machIdent, false, false);
+            ident.accounts = Lists.newArrayList();
+            for (String accountName : accountNames) {
+                AccountInfo info = new AccountInfo();
+                info.name = new AccountName(accountName);
+                ident.accounts.add(info);
+            }
+            return ident;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+//
+// Sling - Copyright 2012 Three Rings Design, Inc.
+
+package com.threerings.sling.web.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests the computing, hooks, invalidation, options and metrics of {@link SimpleCache}.
+ */
+public class SimpleCacheTest
+{
+    @Test public void testCompute ()
+        throws Exception
+    {
+        TestCache cache = new TestCache();
+        assertEquals("a1", cache.get("a"));
+        assertEquals("a1", cache.get("a"));
+        assertNull(cache.get("none"));
+        assertNull(cache.get("none"));
+        assertEquals(2, cache.computed);
+
+        cache.remove("a");
+        assertNull(cache.getIfPresent("a"));
+        assertEquals("a3", cache.get("a"));
+    }
+
+    @Test public void testHooks ()
+        throws Exception
+    {
+        TestCache cache = new TestCache();
+        cache.get("a");
+        cache.put("a", "a-put");
+        assertTrue(cache.replace("a", "a-put", "a-replaced"));
+        assertFalse(cache.replace("a", "a-put", "a-lost"));
+        assertEquals("a-replaced", cache.getIfPresent("a"));
+        cache.put("b", null);
+        cache.get("c");
+        cache.remove("c");
+
+        // every value added has been removed, apart from the one still cached
+        assertEquals(Lists.newArrayList("a-replaced"), cache.live());
+        cache.clear();
+        assertTrue(cache.live().isEmpty());
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testInvalidationBus ()
+        throws Exception
+    {
+        LoopbackInvalidationBus bus = new LoopbackInvalidationBus();
+        TestCache node1 = new TestCache(), node2 = new TestCache(), other = new TestCache();
+        node1.attach(bus, "test");
+        node2.attach(bus, "test");
+        other.attach(bus, "other");
+        for (TestCache cache : new TestCache[] { node1, node2, other }) {
+            cache.get("a");
+            cache.get("b");
+        }
+
+        // a removal on one node evicts the entry on the others
+        node1.remove("a");
+        assertNull(node2.getIfPresent("a"));
+        assertEquals("b2", node2.getIfPresent("b"));
+        assertEquals("a1", other.getIfPresent("a"));
+
+        // an eviction is not published again
+        node2.get("a");
+        assertNull(node1.getIfPresent("a"));
+
+        node2.clear();
+        assertNull(node1.getIfPresent("b"));
+        assertEquals("b2", other.getIfPresent("b"));
+    }
+
+    @Test public void testHiddenKeys ()
+        throws Exception
+    {
+        LoopbackInvalidationBus bus = new LoopbackInvalidationBus();
+        final List<String> published = Lists.newArrayList();
+        bus.subscribe("test", new InvalidationBus.Listener() {
+            public void invalidated (String message) {
+                published.add(message);
+            }
+        });
+        TestCache node1 = new HashedCache(), node2 = new HashedCache();
+        node1.attach(bus, "test");
+        node2.attach(bus, "test");
+        node1.get("secret");
+        node2.get("secret");
+        node2.get("other");
+
+        // other nodes evict the entry without seeing its key
+        node1.remove("secret");
+        assertEquals(Lists.newArrayList("#" + "secret".hashCode()), published);
+        assertNull(node2.getIfPresent("secret"));
+        assertNotNull(node2.getIfPresent("other"));
+    }
+
+    @Test public void testMaximumSize ()
+        throws Exception
+    {
+        TestCache cache = new TestCache(SimpleCache.options(60 * 1000L).maximumSize(2));
+        cache.get("a");
+        cache.get("b");
+        cache.get("a");
+        cache.get("c");
+
+        // the least recently used entry made room, and its value was removed
+        assertEquals(2, cache.size());
+        assertNull(cache.getIfPresent("b"));
+        assertEquals("a1", cache.getIfPresent("a"));
+        assertEquals("c3", cache.getIfPresent("c"));
+        assertEquals(Lists.newArrayList("a1", "c3"), cache.live());
+    }
+
+    @Test public void testMaximumWeight ()
+        throws Exception
+    {
+        TestCache cache = new TestCache(SimpleCache.options(60 * 1000L).maximumWeight(5)) {
+            @Override protected int weigh (String key, String value) {
+                return value.length();
+            }
+        };
+        cache.get("aa");
+        cache.get("b");
+        cache.get("none"); // null values weigh nothing
+        assertEquals(3, cache.size());
+
+        // another two units take the total over five, so the oldest entry goes
+        cache.get("c");
+        assertNull(cache.getIfPresent("aa"));
+        assertEquals("b2", cache.getIfPresent("b"));
+        assertEquals("c4", cache.getIfPresent("c"));
+        assertEquals(Lists.newArrayList("b2", "c4"), cache.live());
+    }
+
+    @Test public void testRefreshAfterWrite ()
+        throws Exception
+    {
+        final List<Runnable> pending = Lists.newArrayList();
+        TestCache cache = new TestCache(SimpleCache.options(60 * 1000L).refreshAfterWrite(
+            1, new Executor() {
+                public void execute (Runnable task) {
+                    pending.add(task);
+                }
+            }));
+        assertEquals("a1", cache.get("a"));
+        Thread.sleep(10);
+
+        // a stale entry is served while it is recomputed, then the new value replaces it
+        assertEquals("a1", cache.get("a"));
+        assertEquals(1, pending.size());
+        pending.remove(0).run();
+        assertEquals("a2", cache.getIfPresent("a"));
+        assertEquals(Lists.newArrayList("a2"), cache.live());
+    }
+
+    @Test public void testStats ()
+        throws Exception
+    {
+        TestCache cache = new TestCache(SimpleCache.options(60 * 1000L).recordStats());
+        cache.get("a");
+        cache.get("a");
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.loadSuccessCount());
+
+        // caches that do not record statistics report none
+        TestCache unrecorded = new TestCache();
+        unrecorded.get("a");
+        unrecorded.get("a");
+        assertEquals(0, unrecorded.stats().requestCount());
+    }
+
+    @Test public void testMetrics ()
+        throws Exception
+    {
+        TestCache cache = new TestCache(SimpleCache.options(60 * 1000L).recordStats());
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = CacheMetrics.toObjectName("test");
+        CacheMetrics.register("test", cache);
+        try {
+            assertEquals(2L, server.getAttribute(name, "Size"));
+            assertEquals(1L, server.getAttribute(name, "HitCount"));
+            assertEquals(2L, server.getAttribute(name, "MissCount"));
+
+            // registering again replaces the exported cache
+            CacheMetrics.register("test", new TestCache());
+            assertEquals(0L, server.getAttribute(name, "Size"));
+        } finally {
+            CacheMetrics.unregister("test");
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * A test cache that publishes a hash of each key rather than the key itself.
+     */
+    protected static class HashedCache extends TestCache
+    {
+        @Override protected String toMessage (String key)
+        {
+            return "#" + key.hashCode();
+        }
+    }
+
+    /**
+     * A cache whose values name their key and the number of computations so far, and which
+     * tracks the values that have been added and not yet removed.
+     */
+    protected static class TestCache extends SimpleCache<String, String>
+    {
+        public int computed;
+
+        public TestCache ()
+        {
+            super(60 * 1000L);
+        }
+
+        public TestCache (Options options)
+        {
+            super(options);
+        }
+
+        public synchronized List<String> live ()
+        {
+            List<String> live = Lists.newArrayList();
+            for (Map.Entry<String, Integer> entry : _live.entrySet()) {
+                for (int ii = 0; ii < entry.getValue(); ii++) {
+                    live.add(entry.getKey());
+                }
+            }
+            return live;
+        }
+
+        @Override protected String compute (String key)
+        {
+            computed++;
+            return key.equals("none") ? null : key + computed;
+        }
+
+        @Override protected synchronized void added (String key, String value)
+        {
+            Integer count = _live.get(value);
+            _live.put(value, count == null ? 1 : count + 1);
+        }
+
+        @Override protected synchronized void removed (String key, String value)
+        {
+            Integer count = _live.get(value);
+            assertNotNull("Removed without being added: " + value, count);
+            if (count == 1) {
+                _live.remove(value);
+            } else {
+                _live.put(value, count - 1);
+            }
+        }
+
+        protected Map<String, Integer> _live = Maps.newTreeMap();
+    }
+}